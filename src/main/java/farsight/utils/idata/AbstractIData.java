@@ -0,0 +1,35 @@
+package farsight.utils.idata;
+
+import com.wm.data.IData;
+import com.wm.data.IDataHashCursor;
+import com.wm.data.IDataIndexCursor;
+import com.wm.data.IDataSharedCursor;
+import com.wm.data.IDataTreeCursor;
+
+/**
+ * Base for IData implementations of this package, which implement {@link IData#getCursor()}. The deprecated cursor
+ * types are provided as adapters over it, see {@link LegacyCursor}.
+ */
+abstract class AbstractIData implements IData {
+
+	@Override
+	public IDataSharedCursor getSharedCursor() {
+		return new LegacyCursor.Shared(this);
+	}
+
+	@Override
+	public IDataIndexCursor getIndexCursor() {
+		return new LegacyCursor.Index(getCursor());
+	}
+
+	@Override
+	public IDataHashCursor getHashCursor() {
+		return new LegacyCursor.Hash(getCursor());
+	}
+
+	@Override
+	public IDataTreeCursor getTreeCursor() {
+		return new LegacyCursor.Tree(getCursor());
+	}
+
+}
@@ -0,0 +1,144 @@
+package farsight.utils.idata;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Reader over a byte array written by {@link BinaryOutput}.
+ */
+final class BinaryInput {
+
+	private static final int READ_CHUNK_SIZE = 64 * 1024;
+
+	private final byte[] buf;
+	private final int limit;
+	private int pos;
+
+	BinaryInput(byte[] buf, int offset, int length) {
+		this.buf = buf;
+		this.pos = offset;
+		this.limit = offset + length;
+	}
+
+	byte[] buffer() {
+		return buf;
+	}
+
+	int position() {
+		return pos;
+	}
+
+	void position(int pos) {
+		this.pos = pos;
+	}
+
+	int limit() {
+		return limit;
+	}
+
+	boolean hasRemaining() {
+		return pos < limit;
+	}
+
+	int remaining() {
+		return limit - pos;
+	}
+
+	private void require(int length) throws EOFException {
+		if(length < 0 || length > limit - pos)
+			throw new EOFException("Unexpected end of data");
+	}
+
+	int readByte() throws IOException {
+		require(1);
+		return buf[pos++] & 0xFF;
+	}
+
+	void skip(int length) throws IOException {
+		require(length);
+		pos += length;
+	}
+
+	byte[] readBytes(int length) throws IOException {
+		require(length);
+		byte[] bytes = new byte[length];
+		System.arraycopy(buf, pos, bytes, 0, length);
+		pos += length;
+		return bytes;
+	}
+
+	long readVarint() throws IOException {
+		long value = 0;
+		for(int shift = 0; shift < 64; shift += 7) {
+			int b = readByte();
+			value |= (long) (b & 0x7F) << shift;
+			if((b & 0x80) == 0)
+				return value;
+		}
+		throw new IOException("Malformed varint");
+	}
+
+	int readLength() throws IOException {
+		long value = readVarint();
+		if(value < 0 || value > Integer.MAX_VALUE)
+			throw new IOException("Invalid length: " + value);
+		return (int) value;
+	}
+
+	/**
+	 * Reads the number of following items, which is checked against the remaining data, so that corrupt input
+	 * cannot allocate huge arrays.
+	 */
+	int readCount(int minItemSize) throws IOException {
+		int count = readLength();
+		if((long) count * minItemSize > remaining())
+			throw new EOFException("Unexpected end of data: " + count + " items announced");
+		return count;
+	}
+
+	long readZigZag() throws IOException {
+		long value = readVarint();
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	int readInt() throws IOException {
+		require(4);
+		int value = (buf[pos] & 0xFF) << 24 | (buf[pos + 1] & 0xFF) << 16 | (buf[pos + 2] & 0xFF) << 8 | (buf[pos + 3] & 0xFF);
+		pos += 4;
+		return value;
+	}
+
+	long readLong() throws IOException {
+		return (long) readInt() << 32 | (readInt() & 0xFFFFFFFFL);
+	}
+
+	String readString() throws IOException {
+		int length = readLength();
+		require(length);
+		String value = new String(buf, pos, length, StandardCharsets.UTF_8);
+		pos += length;
+		return value;
+	}
+
+	/**
+	 * Reads exactly <code>length</code> bytes from the stream. The buffer grows with the data read, so that a
+	 * corrupt length fails at the end of the stream instead of allocating it.
+	 */
+	static byte[] readFully(InputStream in, int length) throws IOException {
+		byte[] bytes = new byte[Math.min(length, READ_CHUNK_SIZE)];
+		int offset = 0;
+		while(offset < length) {
+			if(offset == bytes.length)
+				bytes = Arrays.copyOf(bytes, (int) Math.min(length, 2L * bytes.length));
+			int read = in.read(bytes, offset, bytes.length - offset);
+			if(read == -1)
+				throw new EOFException("Unexpected end of stream");
+			offset += read;
+		}
+		return bytes;
+	}
+
+}
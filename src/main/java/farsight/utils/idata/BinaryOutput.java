@@ -0,0 +1,121 @@
+package farsight.utils.idata;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Growable big endian byte buffer with varint encodings, used by the binary coders.
+ */
+final class BinaryOutput {
+
+	private byte[] buf;
+	private int size = 0;
+
+	BinaryOutput(int capacity) {
+		buf = new byte[Math.max(16, capacity)];
+	}
+
+	int size() {
+		return size;
+	}
+
+	byte[] buffer() {
+		return buf;
+	}
+
+	void reset() {
+		size = 0;
+	}
+
+	byte[] toByteArray() {
+		return Arrays.copyOf(buf, size);
+	}
+
+	void writeTo(OutputStream os) throws IOException {
+		os.write(buf, 0, size);
+	}
+
+	private void ensure(int length) {
+		if(size + length > buf.length)
+			buf = Arrays.copyOf(buf, Math.max(buf.length << 1, size + length));
+	}
+
+	void writeByte(int value) {
+		ensure(1);
+		buf[size++] = (byte) value;
+	}
+
+	void writeBytes(byte[] bytes, int offset, int length) {
+		ensure(length);
+		System.arraycopy(bytes, offset, buf, size, length);
+		size += length;
+	}
+
+	void writeVarint(long value) {
+		ensure(10);
+		while((value & ~0x7FL) != 0) {
+			buf[size++] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		buf[size++] = (byte) value;
+	}
+
+	void writeZigZag(long value) {
+		writeVarint((value << 1) ^ (value >> 63));
+	}
+
+	void writeInt(int value) {
+		ensure(4);
+		setInt(size, value);
+		size += 4;
+	}
+
+	void setInt(int pos, int value) {
+		buf[pos] = (byte) (value >>> 24);
+		buf[pos + 1] = (byte) (value >>> 16);
+		buf[pos + 2] = (byte) (value >>> 8);
+		buf[pos + 3] = (byte) value;
+	}
+
+	/**
+	 * Reserves 4 bytes for a length that is set by {@link #endLength(int)}.
+	 */
+	int beginLength() {
+		ensure(4);
+		int pos = size;
+		size += 4;
+		return pos;
+	}
+
+	void endLength(int pos) {
+		setInt(pos, size - pos - 4);
+	}
+
+	void writeLong(long value) {
+		writeInt((int) (value >>> 32));
+		writeInt((int) value);
+	}
+
+	/**
+	 * Writes the varint length and the UTF-8 bytes of the string.
+	 */
+	void writeString(String value) {
+		int length = value.length();
+		boolean ascii = true;
+		for(int i = 0; i < length && ascii; i++)
+			ascii = value.charAt(i) < 0x80;
+		if(ascii) {
+			writeVarint(length);
+			ensure(length);
+			for(int i = 0; i < length; i++)
+				buf[size++] = (byte) value.charAt(i);
+		} else {
+			byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+			writeVarint(bytes.length);
+			writeBytes(bytes, 0, bytes.length);
+		}
+	}
+
+}
@@ -5,8 +5,12 @@ import java.io.OutputStream;
 import java.lang.reflect.Array;
 import java.util.Arrays;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
 
 import com.wm.data.IData;
 import com.wm.data.IDataCursor;
@@ -17,10 +21,28 @@ import com.wm.util.coder.IDataXMLCoder;
 
 public class DataBuilder {
 	
-	private static final char DEFAULT_PATH_SEPARATOR = '/';
+	private static final char DEFAULT_PATH_SEPARATOR = DataPath.DEFAULT_SEPARATOR;
+	
+	private static final int MIN_GROWTH_CAPACITY = 8;
 	
 	private final IData root;
 	private char defaultSeparator;
+	private Supplier<IData> factory = IDataFactory::create;
+	private IdentityHashMap<Object[], ArraySlot> growingArrays = null;
+	//nodes owned by a template, which have to be copied before they are modified
+	private Set<Object> sharedNodes = null;
+	
+	private static class ArraySlot {
+		private final IData parent;
+		private final String key;
+		private int length;
+		
+		private ArraySlot(IData parent, String key, int length) {
+			this.parent = parent;
+			this.key = key;
+			this.length = length;
+		}
+	}
 	
 	public DataBuilder() {
 		this(IDataFactory.create());
@@ -39,23 +61,42 @@ public class DataBuilder {
 		return new DataBuilder();
 	}
 	
+	/**
+	 * Creates a builder that uses the given factory for the root and all nested IData it creates.
+	 */
+	public static DataBuilder create(Supplier<IData> factory) {
+		return new DataBuilder(factory.get()).withFactory(factory);
+	}
+	
+	/**
+	 * Creates a builder backed by {@link HashedIData}, which is preferable when building wide documents.
+	 */
+	public static DataBuilder createHashed() {
+		return create(HashedIData::new);
+	}
+	
 	public static DataBuilder wrap(IData data) {
 		return new DataBuilder(data);
 	}
 	
+	/**
+	 * Wraps the map without copying it, see {@link MapIData}. Not an overload of {@link #wrap(IData)}, which
+	 * would make <code>wrap(null)</code> ambiguous.
+	 */
+	public static DataBuilder wrapMap(Map<String, ? extends Object> map) {
+		return new DataBuilder(new MapIData(map));
+	}
+	
+	static DataBuilder copyOnWrite(IData template, Set<Object> sharedNodes) {
+		DataBuilder builder = new DataBuilder(IDataUtil.clone(template));
+		builder.sharedNodes = sharedNodes;
+		return builder;
+	}
+	
 	// internal helpers
 	
 	private static IData cloneIData(IData source, boolean deepClone) {
-		if(deepClone) {
-			try {
-				return IDataUtil.deepClone(source);
-			} catch (IOException e) {
-				//IDataUtil uses (de-)serialization for deep cloning
-				throw new RuntimeException("Deep cloning failed, this should not happen!", e);
-			}
-		} else {
-			return IDataUtil.clone(source);
-		}
+		return deepClone ? IDataCopier.DEFAULT.copy(source) : IDataUtil.clone(source);
 	}
 	
 	private <T> T defaultValue(T value, T defaultValue) {
@@ -84,54 +125,138 @@ public class DataBuilder {
 		return enlarged;
 	}
 
-	private void setItem(IData src, String segment, Object value) {
-		String key;
-		int index = -1;
-		int p = segment.indexOf('[');
-		if(p == -1) {
-			key = segment;
-		} else {
-			key = segment.substring(0, p);
-			index = Integer.parseInt(segment.substring(p + 1, segment.length() - 1), 10);
+	private boolean isShared(Object node) {
+		return sharedNodes != null && node != null && sharedNodes.contains(node);
+	}
+	
+	private IData shallowCopy(IData data) {
+		IData copy = factory.get();
+		IDataCursor from = data.getCursor(), into = copy.getCursor();
+		while(from.next())
+			into.insertAfter(from.getKey(), from.getValue());
+		return copy;
+	}
+	
+	private IData ownIData(IDataCursor c, IData data) {
+		if(!isShared(data))
+			return data;
+		IData copy = shallowCopy(data);
+		c.setValue(copy);
+		return copy;
+	}
+	
+	private Object[] ownArray(IDataCursor c, Object[] array) {
+		if(!isShared(array))
+			return array;
+		Object[] copy = array.clone();
+		c.setValue(copy);
+		return copy;
+	}
+
+	private int logicalLength(Object[] array) {
+		ArraySlot slot = growingArrays == null ? null : growingArrays.get(array);
+		return slot == null ? array.length : slot.length;
+	}
+
+	/**
+	 * Returns an array that is able to hold <code>index</code>. If the given array is too small (or null) a
+	 * new one is created and set at the cursor's position. In geometric growth mode arrays are over-allocated
+	 * and their logical length is tracked until they are trimmed by {@link #build()}.
+	 */
+	private Object[] reserveArray(IData parent, IDataCursor c, String key, Object[] array, Class<?> type, int index) {
+		if(array == null || array.length <= index) {
+			int capacity = index + 1;
+			if(growingArrays != null)
+				capacity = Math.max(capacity, Math.max(MIN_GROWTH_CAPACITY, array == null ? 0 : array.length << 1));
+			
+			int length = index + 1;
+			Object[] enlarged;
+			if(array == null) {
+				enlarged = (Object[]) Array.newInstance(type, capacity);
+			} else {
+				enlarged = enlargeArray(array, capacity);
+				length = Math.max(length, logicalLength(array));
+				if(growingArrays != null)
+					growingArrays.remove(array);
+			}
+			if(growingArrays != null && capacity > length)
+				growingArrays.put(enlarged, new ArraySlot(parent, key, length));
+			c.setValue(enlarged);
+			return enlarged;
 		}
 		
+		if(growingArrays != null) {
+			ArraySlot slot = growingArrays.get(array);
+			if(slot != null && slot.length <= index)
+				slot.length = index + 1;
+		}
+		return array;
+	}
+	
+	private void trimArrays() {
+		if(growingArrays == null || growingArrays.isEmpty())
+			return;
+		for(Entry<Object[], ArraySlot> entry: growingArrays.entrySet()) {
+			Object[] array = entry.getKey();
+			ArraySlot slot = entry.getValue();
+			if(array.length == slot.length)
+				continue;
+			//array may have been moved or removed meanwhile, so make sure to replace the same instance
+			IDataCursor c = slot.parent.getCursor();
+			for(boolean found = c.first(slot.key); found; found = c.next(slot.key)) {
+				if(c.getValue() == array) {
+					c.setValue(Arrays.copyOf(array, slot.length));
+					break;
+				}
+			}
+		}
+		growingArrays.clear();
+	}
+
+	private void setItem(IData src, String key, int index, Object value) {
 		IDataCursor c = src.getCursor();
-		if(index == -1) {
+		if(index == DataPath.NO_INDEX) {
 			findSpot(c, key, true);
 			c.setValue(value);
 		} else {
 			Class<?> type = getArrayTypeFor(value);
-			if(findArrayTypedSpot(c, key, type, true)) {
-				//array of correct type found
-				Object[] array = (Object[]) c.getValue();
-				if(array.length > index) {
-					array[index] = value;
-				} else {
-					Object[] enlarged = enlargeArray(array, index + 1);
-					enlarged[index] = value;
-					c.setValue(enlarged);
-				}
-			} else {
-				Object[] array = (Object[]) Array.newInstance(type, index + 1);
-				array[index] = value;
+			//use array if of correct type
+			Object[] array = findArrayTypedSpot(c, key, type, true) ? ownArray(c, (Object[]) c.getValue()) : null;
+			reserveArray(src, c, key, array, type, index)[index] = value;
+		}
+	}
+	
+	private void appendItem(IData src, String key, Object value) {
+		IDataCursor c = src.getCursor();
+		Object current = findSpot(c, key, true) ? c.getValue() : null;
+		Object[] array = null;
+		Class<?> type = value instanceof IData ? IData.class : getArrayTypeFor(value);
+		if(current instanceof Object[]) {
+			array = ownArray(c, (Object[]) current);
+			if(value != null && !array.getClass().getComponentType().isInstance(value)) {
+				//widen existing array, so that no items get lost
+				Object[] widened = Arrays.copyOf(array, logicalLength(array), Object[].class);
+				if(growingArrays != null)
+					growingArrays.remove(array);
+				array = widened;
 				c.setValue(array);
 			}
+		} else if(current != null) {
+			if(current.getClass().isArray())
+				throw new IllegalArgumentException("Cannot append to primitive array at key: " + key);
+			//keep the existing value as first item
+			Class<?> currentType = current instanceof IData ? IData.class : getArrayTypeFor(current);
+			array = (Object[]) Array.newInstance(value == null || currentType.isInstance(value) ? currentType : Object.class, 1);
+			array[0] = current;
+			c.setValue(array);
 		}
+		int index = array == null ? 0 : logicalLength(array);
+		reserveArray(src, c, key, array, type, index)[index] = value;
 	}
 
-	private Object getItem(IData src, String segment) {
-		String key;
-		int index = -1;
-		int p = segment.indexOf('[');
-		if(p == -1) {
-			key = segment;
-		} else {
-			key = segment.substring(0, p);
-			index = Integer.parseInt(segment.substring(p + 1, segment.length() - 1), 10);
-		}
-		
+	private Object getItem(IData src, String key, int index) {
 		IDataCursor c = src.getCursor();
-		if(index == -1) {
+		if(index == DataPath.NO_INDEX) {
 			return findSpot(c, key, false) ? c.getValue() : null;
 		} else {
 			if(findTypedSpot(c, key, Object[].class, false)) {
@@ -143,60 +268,35 @@ public class DataBuilder {
 		}
 	}
 
-	private IData getNextSegemnt(IData src, String segment, boolean create) {
-		String key;
-		int index = -1;
-		int p = segment.indexOf('[');
-		if(p == -1) {
-			key = segment;
-		} else {
-			key = segment.substring(0, p);
-			index = Integer.parseInt(segment.substring(p + 1, segment.length() - 1), 10);
-		}
-		return index == -1 ? getChild(src, key, create) : getChildItem(src, key, index, create);
+	private IData getNextSegment(IData src, String key, int index, boolean create) {
+		return index == DataPath.NO_INDEX ? getChild(src, key, create) : getChildItem(src, key, index, create);
 	}
 
 	private IData getChildItem(IData data, String key, int index, boolean create) {
 		IDataCursor c = data.getCursor();
-		if(findTypedSpot(c, key, IData[].class, create)) {
-			//array already exists
-			IData[] array = (IData[]) c.getValue();
-			if(array.length > index) {
-				//index is present
-				IData res = array[index];
-				if(create && res == null) {
-					res = IDataFactory.create();
-					array[index] = res;
-				}
-				return res;
-			} else {
-				//index not present
-				if(create) {
-					//enlarge array
-					IData[] enlarged = new IData[index + 1];
-					System.arraycopy(array, 0, enlarged, 0, array.length);
-					c.setValue(enlarged);
-					return enlarged[index] = IDataFactory.create();
-				}
-				return null;
-			}
-		} else {
-			//array does not exist
-			if(create) {
-				IData[] array = new IData[index + 1];
-				c.setValue(array);
-				return array[index] = IDataFactory.create();
-			}
-			return null;
+		IData[] array = findTypedSpot(c, key, IData[].class, create) ? (IData[]) c.getValue() : null;
+		if(!create)
+			return array != null && array.length > index ? array[index] : null;
+		
+		//enlarge or create array if index is not present
+		array = (IData[]) reserveArray(data, c, key, ownArray(c, array), IData.class, index);
+		IData res = array[index];
+		if(res == null) {
+			res = factory.get();
+			array[index] = res;
+		} else if(isShared(res)) {
+			res = shallowCopy(res);
+			array[index] = res;
 		}
+		return res;
 	}
 
 	private IData getChild(IData data, String key, boolean create) {
 		IDataCursor c = data.getCursor();
 		if(findTypedSpot(c, key, IData.class, create))
-			return (IData) c.getValue();
+			return create ? ownIData(c, (IData) c.getValue()) : (IData) c.getValue();
 		if(create) {
-			IData child = IDataFactory.create();
+			IData child = factory.get();
 			c.setValue(child);
 			return child;
 		} else {
@@ -244,9 +344,89 @@ public class DataBuilder {
 		return wrap(cloneIData(root, deep));
 	}
 	
+	/**
+	 * Replaces all template subtrees that are still shared (see {@link DataTemplate}) by deep copies, so the
+	 * built IData may be modified without affecting the template or other instances.
+	 */
+	public DataBuilder materialize() {
+		if(sharedNodes != null) {
+			materialize(root);
+			sharedNodes = null;
+		}
+		return this;
+	}
+	
+	private void materialize(IData data) {
+		IDataCursor c = data.getCursor();
+		while(c.next()) {
+			Object value = c.getValue();
+			if(isShared(value))
+				c.setValue(IDataCopier.DEFAULT.copyValue(value));
+			else
+				materializeValue(value);
+		}
+	}
+	
+	private void materializeValue(Object value) {
+		if(value instanceof IData) {
+			materialize((IData) value);
+		} else if(value instanceof Object[]) {
+			Object[] array = (Object[]) value;
+			for(int i = 0; i < array.length; i++) {
+				if(isShared(array[i]))
+					array[i] = IDataCopier.DEFAULT.copyValue(array[i]);
+				else
+					materializeValue(array[i]);
+			}
+		}
+	}
+	
+	/**
+	 * Makes the item and all nodes on the path to it owned by this builder, so it can be handed out to callers.
+	 * Only used on copy-on-write instances, the path must exist.
+	 */
+	private Object ownItem(DataPath path) {
+		IData cur = root;
+		int last = path.size() - 1;
+		for(int i = 0; i < last; i++)
+			cur = getNextSegment(cur, path.getKey(i), path.getIndex(i), true);
+		return ownItem(cur, path.getKey(last), path.getIndex(last));
+	}
+	
+	private Object ownItem(IData src, String key, int index) {
+		IDataCursor c = src.getCursor();
+		if(index == DataPath.NO_INDEX) {
+			c.first(key);
+			Object value = c.getValue(), owned = ownValue(value);
+			if(owned != value)
+				c.setValue(owned);
+			return owned;
+		} else {
+			c.first(key);
+			Object[] array = ownArray(c, (Object[]) c.getValue());
+			return array[index] = ownValue(array[index]);
+		}
+	}
+	
+	private Object ownValue(Object value) {
+		if(isShared(value))
+			return IDataCopier.DEFAULT.copyValue(value);
+		materializeValue(value);
+		return value;
+	}
+	
+	private boolean mayBeShared(Object value) {
+		return sharedNodes != null && (value instanceof IData || value instanceof Object[]);
+	}
+	
 	// IData access
 	
+	/**
+	 * Returns the built IData. Arrays that were over-allocated in geometric growth mode are trimmed to their
+	 * logical length.
+	 */
 	public IData build() {
+		trimArrays();
 		return root;
 	}
 	
@@ -254,6 +434,14 @@ public class DataBuilder {
 		return build();
 	}
 	
+	/**
+	 * Returns a zero-copy map view of the built IData, see {@link IDataMapView}. Shared template subtrees are
+	 * materialized first, as they are reachable through the view.
+	 */
+	public Map<String, Object> asMap() {
+		return IDataMapView.wrap(materialize().build());
+	}
+	
 	// nested access
 	
 	public DataBuilder withDefaultSeparator(char defaultSeparator) {
@@ -261,6 +449,26 @@ public class DataBuilder {
 		return this;
 	}
 	
+	/**
+	 * Sets the factory used for nested IData created by path inserts.
+	 */
+	public DataBuilder withFactory(Supplier<IData> factory) {
+		this.factory = factory;
+		return this;
+	}
+	
+	/**
+	 * Enables geometric growth for arrays that are enlarged by indexed inserts or appends. This makes filling
+	 * arrays item by item linear instead of quadratic. Enlarged arrays may contain trailing <code>null</code>
+	 * slots until they are trimmed by {@link #build()}.
+	 */
+	public DataBuilder withGeometricGrowth(boolean enabled) {
+		if(!enabled)
+			trimArrays();
+		growingArrays = enabled ? new IdentityHashMap<>() : null;
+		return this;
+	}
+	
 	public Object read(String path) {
 		return read(path, defaultSeparator);
 	}
@@ -287,38 +495,88 @@ public class DataBuilder {
 
 	
 	public Object read(String path, char separator) {
-		int offset = 0, pos = path.indexOf(separator);
+		return read(DataPath.compile(path, separator));
+	}
+
+	/**
+	 * Returns the value at the path. Nested IData and arrays returned from a template instance (see
+	 * {@link DataTemplate}) are copied first if still shared, so they may be modified by the caller.
+	 */
+	public Object read(DataPath path) {
+		Object value = lookup(path);
+		return mayBeShared(value) ? ownItem(path) : value;
+	}
+
+	private Object lookup(DataPath path) {
 		IData cur = root;
-		while(pos > 0) {
-			String segment = path.substring(offset, pos);
-			cur = getNextSegemnt(cur, segment, false);
+		int last = path.size() - 1;
+		for(int i = 0; i < last; i++) {
+			cur = getNextSegment(cur, path.getKey(i), path.getIndex(i), false);
 			if(cur == null)
 				return null;
-			
-			//next segment
-			offset = pos + 1;
-			pos = path.indexOf(separator, offset);
 		}
-		return getItem(cur, path.substring(offset));
+		return getItem(cur, path.getKey(last), path.getIndex(last));
+	}
+
+	public <T> T read(DataPath path, Class<T> type) {
+		return cast(read(path), type);
 	}
 	
+	/**
+	 * Lazily selects all values matching the query, see {@link DataQuery}. Compile the query once, if it is
+	 * used repeatedly. Shared template subtrees are materialized first, as any of them may be selected.
+	 */
+	public Stream<Object> select(String query) {
+		return select(DataQuery.compile(query, defaultSeparator));
+	}
+	
+	public Stream<Object> select(DataQuery query) {
+		return query.stream(materialize().root);
+	}
+	
+	public <T> Stream<T> select(DataQuery query, Class<T> type) {
+		return query.stream(materialize().root, type);
+	}
 	
 	public DataBuilder insert(String path, Object value) {
 		return insert(path, value, defaultSeparator);
 	}
 	
 	public DataBuilder insert(String path, Object value, char separator) {
-		int offset = 0, pos = path.indexOf(separator);
+		return insert(DataPath.compile(path, separator), value);
+	}
+
+	public DataBuilder insert(DataPath path, Object value) {
 		IData cur = root;
-		while(pos > 0) {
-			String segment = path.substring(offset, pos);
-			cur = getNextSegemnt(cur, segment, true);
-			
-			//next segment
-			offset = pos + 1;
-			pos = path.indexOf(separator, offset);
+		int last = path.size() - 1;
+		for(int i = 0; i < last; i++) {
+			cur = getNextSegment(cur, path.getKey(i), path.getIndex(i), true);
+		}
+		setItem(cur, path.getKey(last), path.getIndex(last), value);
+		return this;
+	}
+	
+	public DataBuilder append(String path, Object value) {
+		return append(path, value, defaultSeparator);
+	}
+	
+	public DataBuilder append(String path, Object value, char separator) {
+		return append(DataPath.compile(path, separator), value);
+	}
+	
+	/**
+	 * Appends the value to the array at the given path. The array is created if not present, an existing single
+	 * value becomes its first item. Primitive arrays can not be appended to.
+	 */
+	public DataBuilder append(DataPath path, Object value) {
+		int last = path.size() - 1;
+		if(path.hasIndex(last))
+			throw new IllegalArgumentException("Path to append to must not end with an index: " + path);
+		IData cur = root;
+		for(int i = 0; i < last; i++) {
+			cur = getNextSegment(cur, path.getKey(i), path.getIndex(i), true);
 		}
-		setItem(cur, path.substring(offset), value);
+		appendItem(cur, path.getKey(last), value);
 		return this;
 	}
 	
@@ -340,8 +598,21 @@ public class DataBuilder {
 		return this;
 	}
 	
-	@SuppressWarnings("unchecked")
 	public DataBuilder putRecursive(Map<String, ? extends Object> values) {
+		return putRecursive(values, true);
+	}
+	
+	/**
+	 * Puts all values, nested maps are either copied into IData or wrapped by a zero-copy {@link MapIData}.
+	 */
+	@SuppressWarnings("unchecked")
+	public DataBuilder putRecursive(Map<String, ? extends Object> values, boolean copy) {
+		if(!copy) {
+			for(Entry<String, ? extends Object> set: values.entrySet()) {
+				put(set.getKey(), MapIData.toIDataValue(set.getValue()));
+			}
+			return this;
+		}
 		for(Entry<String, ? extends Object> set: values.entrySet()) {
 			Object o = set.getValue();
 			if(o instanceof Map) {
@@ -360,19 +631,39 @@ public class DataBuilder {
 		return root.getCursor().first(key);
 	}
 	
+	/**
+	 * Estimated retained size in bytes, see {@link DataSizeEstimator}.
+	 */
+	public long estimateSize() {
+		return DataSizeEstimator.estimate(root);
+	}
+	
+	/**
+	 * Returns true if the estimated retained size exceeds the budget (in bytes). Stops estimating as soon
+	 * as the budget is exceeded.
+	 */
+	public boolean exceedsSize(long budget) {
+		return DataSizeEstimator.exceeds(root, budget);
+	}
+	
 	public boolean containsPath(String path) {
 		return containsPath(path, defaultSeparator);
 	}
 
 	public boolean containsPath(String path, char separator) {
-		return read(path, separator) != null;
+		return containsPath(DataPath.compile(path, separator));
+	}
+
+	public boolean containsPath(DataPath path) {
+		return lookup(path) != null;
 	}
 	
 	public Object get(String key) {
 		IDataCursor c = root.getCursor();
-		if(c.first(key))
-			return c.getValue();
-		return null;
+		if(!c.first(key))
+			return null;
+		Object value = c.getValue();
+		return mayBeShared(value) ? ownItem(root, key, DataPath.NO_INDEX) : value;
 	}
 	
 	public Object get(String key, Object defaultValue) {
@@ -424,16 +715,63 @@ public class DataBuilder {
 		return this;
 	}
 
+	/**
+	 * Removes everything not selected by the projection, see {@link DataProjection}.
+	 */
+	public DataBuilder prune(DataProjection projection) {
+		//prunes nested nodes in place
+		materialize();
+		projection.prune(root);
+		return this;
+	}
+	
+	/**
+	 * Returns a new builder holding a projected copy, see {@link DataProjection}.
+	 */
+	public DataBuilder project(DataProjection projection) {
+		return wrap(projection.project(root));
+	}
+
 	public DataBuilder merge(IData other, boolean dominant) {
 		if(dominant) {
 			IDataUtil.merge(other, root);
-		} else { 
-			IDataUtil.merge(root, other);
-			replace(other);
+		} else {
+			//key order of other, present values win, other is left untouched
+			IData merged = IDataFactory.create();
+			IDataUtil.merge(other, merged);
+			IDataUtil.merge(root, merged);
+			replace(merged);
 		}
 		return this;
 	}
 	
+	/**
+	 * Merges the other IData recursively into this, see {@link DataMerger}.
+	 */
+	public DataBuilder merge(IData other, DataMerger merger) {
+		//merges into nested nodes in place
+		materialize();
+		merger.merge(root, other);
+		return this;
+	}
+	
+	/**
+	 * Returns the delta from this to the other IData, see {@link DataDiff}.
+	 */
+	public IData diff(IData other) {
+		return DataDiff.diff(root, other);
+	}
+	
+	/**
+	 * Applies a delta created by {@link DataDiff#diff(IData, IData)} to this.
+	 */
+	public DataBuilder patch(IData delta) {
+		//patches nested nodes in place
+		materialize();
+		DataDiff.patch(root, delta);
+		return this;
+	}
+	
 	// debug utils
 	
 	public DataBuilder dump(OutputStream os, IDataCoder coder) throws IOException {
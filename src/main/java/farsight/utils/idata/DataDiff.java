@@ -0,0 +1,350 @@
+package farsight.utils.idata;
+
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map.Entry;
+import java.util.Objects;
+
+import com.wm.data.IData;
+import com.wm.data.IDataCursor;
+import com.wm.data.IDataFactory;
+
+/**
+ * Structural diff and patch of IData trees.
+ *
+ * A delta is an IData itself, so it can be serialized with the usual coders (e.g. {@link PipelineSerializer}):
+ * <pre>
+ * operations[]
+ *   op      put | remove | insert | resize
+ *   path    String[] of keys and array indexes (written as [n], keys starting with [ or \ are escaped by \)
+ *   value   new value (put and insert only)
+ *   length  new array length (resize only)
+ * </pre>
+ * Documents are compared key by key. Arrays with equal component types are aligned by their common prefix and
+ * suffix and, for small differences, their longest common subsequence; items are then inserted into and removed
+ * from the array at an index, or compared item by item, so the delta grows with the change and not with the
+ * array. Operations are applied in order, indexes refer to the array as changed by the preceding operations.
+ * All other values are compared by equality. Keys are matched by their first occurrence and the order of keys is
+ * not part of the delta. Resize operations are only read, for deltas of earlier versions.
+ */
+public class DataDiff {
+
+	public static final String OP_PUT = "put";
+	public static final String OP_REMOVE = "remove";
+	public static final String OP_INSERT = "insert";
+	public static final String OP_RESIZE = "resize";
+
+	//arrays whose differing parts exceed this product of lengths are compared item by item
+	private static final int MAX_ALIGNMENT_CELLS = 1 << 18;
+
+	private static final String KEY_OPERATIONS = "operations";
+	private static final String KEY_OP = "op";
+	private static final String KEY_PATH = "path";
+	private static final String KEY_VALUE = "value";
+	private static final String KEY_LENGTH = "length";
+
+	private final ArrayList<IData> operations = new ArrayList<>();
+	private final ArrayList<String> path = new ArrayList<>();
+
+	private DataDiff() {
+
+	}
+
+	/**
+	 * Computes the delta that transforms <code>from</code> into <code>to</code>. Values in the delta are shared
+	 * with <code>to</code>.
+	 */
+	public static IData diff(IData from, IData to) {
+		DataDiff diff = new DataDiff();
+		diff.diffData(from == null ? IDataFactory.create() : from, to == null ? IDataFactory.create() : to);
+		IData delta = IDataFactory.create();
+		delta.getCursor().insertAfter(KEY_OPERATIONS, diff.operations.toArray(new IData[diff.operations.size()]));
+		return delta;
+	}
+
+	public static boolean isEmpty(IData delta) {
+		IData[] operations = getOperations(delta);
+		return operations == null || operations.length == 0;
+	}
+
+	// diff
+
+	private static LinkedHashMap<String, Object> entries(IData data) {
+		LinkedHashMap<String, Object> entries = new LinkedHashMap<>();
+		IDataCursor c = data.getCursor();
+		while(c.next())
+			entries.putIfAbsent(c.getKey(), c.getValue());
+		return entries;
+	}
+
+	private void diffData(IData from, IData to) {
+		LinkedHashMap<String, Object> before = entries(from);
+		HashSet<String> seen = new HashSet<>();
+		IDataCursor c = to.getCursor();
+		while(c.next()) {
+			String key = c.getKey();
+			if(!seen.add(key))
+				continue;
+			path.add(escape(key));
+			if(before.containsKey(key))
+				diffValue(before.get(key), c.getValue());
+			else
+				put(c.getValue());
+			path.remove(path.size() - 1);
+		}
+		for(Entry<String, Object> entry: before.entrySet()) {
+			if(!seen.contains(entry.getKey())) {
+				path.add(escape(entry.getKey()));
+				operation(OP_REMOVE);
+				path.remove(path.size() - 1);
+			}
+		}
+	}
+
+	private void diffValue(Object from, Object to) {
+		if(from == to)
+			return;
+		if(from instanceof IData && to instanceof IData) {
+			diffData((IData) from, (IData) to);
+		} else if(from instanceof Object[] && to instanceof Object[]
+				&& from.getClass().getComponentType() == to.getClass().getComponentType()) {
+			diffArray((Object[]) from, (Object[]) to);
+		} else if(!Objects.deepEquals(from, to)) {
+			put(to);
+		}
+	}
+
+	private void diffArray(Object[] from, Object[] to) {
+		int prefix = 0;
+		while(prefix < from.length && prefix < to.length && equal(from[prefix], to[prefix]))
+			prefix++;
+		int fromEnd = from.length, toEnd = to.length;
+		while(fromEnd > prefix && toEnd > prefix && equal(from[fromEnd - 1], to[toEnd - 1])) {
+			fromEnd--;
+			toEnd--;
+		}
+
+		//the index into the array as changed by the operations so far
+		int index = prefix;
+		int f = prefix, t = prefix;
+		int[][] common = align(from, prefix, fromEnd, to, prefix, toEnd);
+		for(int[] match: common) {
+			index = diffGap(from, f, match[0], to, t, match[1], index) + 1;
+			f = match[0] + 1;
+			t = match[1] + 1;
+		}
+		diffGap(from, f, fromEnd, to, t, toEnd, index);
+	}
+
+	//items between matches: changed pairwise, the rest removed or inserted; returns the index behind the gap
+	private int diffGap(Object[] from, int f, int fromEnd, Object[] to, int t, int toEnd, int index) {
+		for(; f < fromEnd && t < toEnd; f++, t++, index++) {
+			path.add("[" + index + "]");
+			diffValue(from[f], to[t]);
+			path.remove(path.size() - 1);
+		}
+		for(; f < fromEnd; f++) {
+			path.add("[" + index + "]");
+			operation(OP_REMOVE);
+			path.remove(path.size() - 1);
+		}
+		for(; t < toEnd; t++, index++) {
+			path.add("[" + index + "]");
+			IDataCursor c = operation(OP_INSERT).getCursor();
+			c.last();
+			c.insertAfter(KEY_VALUE, to[t]);
+			path.remove(path.size() - 1);
+		}
+		return index;
+	}
+
+	//pairs of positions of equal items (longest common subsequence), none if the ranges are too large
+	private static int[][] align(Object[] from, int fromStart, int fromEnd, Object[] to, int toStart, int toEnd) {
+		int m = fromEnd - fromStart, n = toEnd - toStart;
+		if(m == 0 || n == 0 || (long) m * n > MAX_ALIGNMENT_CELLS)
+			return new int[0][];
+		int[][] lengths = new int[m + 1][n + 1];
+		for(int i = m - 1; i >= 0; i--) {
+			for(int j = n - 1; j >= 0; j--) {
+				lengths[i][j] = equal(from[fromStart + i], to[toStart + j]) ? lengths[i + 1][j + 1] + 1
+						: Math.max(lengths[i + 1][j], lengths[i][j + 1]);
+			}
+		}
+		int[][] matches = new int[lengths[0][0]][];
+		int i = 0, j = 0, k = 0;
+		while(k < matches.length) {
+			if(lengths[i][j] == lengths[i + 1][j]) {
+				i++;
+			} else if(lengths[i][j] == lengths[i][j + 1]) {
+				j++;
+			} else {
+				matches[k++] = new int[] { fromStart + i++, toStart + j++ };
+			}
+		}
+		return matches;
+	}
+
+	//structural equality, documents including the order of keys
+	private static boolean equal(Object a, Object b) {
+		if(a == b)
+			return true;
+		if(a instanceof IData && b instanceof IData) {
+			IDataCursor ca = ((IData) a).getCursor(), cb = ((IData) b).getCursor();
+			while(ca.next()) {
+				if(!cb.next() || !Objects.equals(ca.getKey(), cb.getKey()) || !equal(ca.getValue(), cb.getValue()))
+					return false;
+			}
+			return !cb.next();
+		}
+		if(a instanceof Object[] && b instanceof Object[]) {
+			Object[] x = (Object[]) a, y = (Object[]) b;
+			if(x.length != y.length || x.getClass() != y.getClass())
+				return false;
+			for(int i = 0; i < x.length; i++) {
+				if(!equal(x[i], y[i]))
+					return false;
+			}
+			return true;
+		}
+		return Objects.deepEquals(a, b);
+	}
+
+	private IData operation(String op) {
+		IData operation = IDataFactory.create();
+		IDataCursor c = operation.getCursor();
+		c.insertAfter(KEY_OP, op);
+		c.insertAfter(KEY_PATH, path.toArray(new String[path.size()]));
+		operations.add(operation);
+		return operation;
+	}
+
+	private void put(Object value) {
+		IDataCursor c = operation(OP_PUT).getCursor();
+		c.last();
+		c.insertAfter(KEY_VALUE, value);
+	}
+
+	private static String escape(String key) {
+		if(key != null && !key.isEmpty() && (key.charAt(0) == '[' || key.charAt(0) == '\\'))
+			return "\\" + key;
+		return key;
+	}
+
+	// patch
+
+	private static IData[] getOperations(IData delta) {
+		IDataCursor c = delta.getCursor();
+		return c.first(KEY_OPERATIONS) ? (IData[]) c.getValue() : null;
+	}
+
+	private static Object get(IData data, String key) {
+		IDataCursor c = data.getCursor();
+		return c.first(key) ? c.getValue() : null;
+	}
+
+	/**
+	 * Applies the delta to the target (in place) and returns it. Values are copied from the delta, so it may be
+	 * applied multiple times.
+	 */
+	public static IData patch(IData target, IData delta) {
+		IData[] operations = getOperations(delta);
+		if(operations == null)
+			return target;
+		for(IData operation: operations) {
+			String op = (String) get(operation, KEY_OP);
+			String[] path = (String[]) get(operation, KEY_PATH);
+			if(path == null || path.length == 0)
+				throw new IllegalArgumentException("Invalid delta: operation without path");
+
+			Object holder = null, parent = target;
+			for(int i = 0; i < path.length - 1; i++) {
+				holder = parent;
+				parent = child(parent, path[i]);
+				if(parent == null)
+					throw new IllegalStateException("Delta does not apply, path not found: " + Arrays.toString(path));
+			}
+			String last = path[path.length - 1];
+			if(OP_PUT.equals(op)) {
+				set(parent, last, IDataCopier.DEFAULT.copyValue(get(operation, KEY_VALUE)), true);
+			} else if(OP_INSERT.equals(op) || (OP_REMOVE.equals(op) && isIndex(last))) {
+				if(holder == null || !(parent instanceof Object[]) || !isIndex(last))
+					throw new IllegalStateException("Delta does not apply, no array at: " + Arrays.toString(path));
+				Object[] array = (Object[]) parent;
+				int index = index(last);
+				Object[] changed;
+				if(OP_INSERT.equals(op)) {
+					if(index > array.length)
+						throw new IllegalStateException("Delta does not apply, array index not found: " + last);
+					changed = (Object[]) Array.newInstance(array.getClass().getComponentType(), array.length + 1);
+					System.arraycopy(array, 0, changed, 0, index);
+					changed[index] = IDataCopier.DEFAULT.copyValue(get(operation, KEY_VALUE));
+					System.arraycopy(array, index, changed, index + 1, array.length - index);
+				} else {
+					if(index >= array.length)
+						throw new IllegalStateException("Delta does not apply, array index not found: " + last);
+					changed = (Object[]) Array.newInstance(array.getClass().getComponentType(), array.length - 1);
+					System.arraycopy(array, 0, changed, 0, index);
+					System.arraycopy(array, index + 1, changed, index, array.length - index - 1);
+				}
+				set(holder, path[path.length - 2], changed, false);
+			} else if(OP_REMOVE.equals(op)) {
+				if(parent instanceof IData) {
+					IDataCursor c = ((IData) parent).getCursor();
+					if(c.first(unescape(last)))
+						c.delete();
+				}
+			} else if(OP_RESIZE.equals(op)) {
+				Object array = child(parent, last);
+				if(!(array instanceof Object[]))
+					throw new IllegalStateException("Delta does not apply, no array at: " + Arrays.toString(path));
+				int length = Integer.parseInt((String) get(operation, KEY_LENGTH));
+				set(parent, last, Arrays.copyOf((Object[]) array, length), false);
+			} else {
+				throw new IllegalArgumentException("Invalid delta: unknown operation " + op);
+			}
+		}
+		return target;
+	}
+
+	private static int index(String segment) {
+		return Integer.parseInt(segment.substring(1, segment.length() - 1));
+	}
+
+	private static boolean isIndex(String segment) {
+		return !segment.isEmpty() && segment.charAt(0) == '[';
+	}
+
+	private static String unescape(String segment) {
+		return !segment.isEmpty() && segment.charAt(0) == '\\' ? segment.substring(1) : segment;
+	}
+
+	private static Object child(Object parent, String segment) {
+		if(isIndex(segment)) {
+			int index = index(segment);
+			return parent instanceof Object[] && index < ((Object[]) parent).length ? ((Object[]) parent)[index] : null;
+		}
+		return parent instanceof IData ? get((IData) parent, unescape(segment)) : null;
+	}
+
+	private static void set(Object parent, String segment, Object value, boolean append) {
+		if(isIndex(segment)) {
+			if(!(parent instanceof Object[]) || index(segment) >= ((Object[]) parent).length)
+				throw new IllegalStateException("Delta does not apply, array index not found: " + segment);
+			((Object[]) parent)[index(segment)] = value;
+		} else if(parent instanceof IData) {
+			IDataCursor c = ((IData) parent).getCursor();
+			if(c.first(unescape(segment))) {
+				c.setValue(value);
+			} else if(append) {
+				c.last();
+				c.insertAfter(unescape(segment), value);
+			}
+		} else {
+			throw new IllegalStateException("Delta does not apply, document not found for key: " + segment);
+		}
+	}
+
+}
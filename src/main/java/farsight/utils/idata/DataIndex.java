@@ -0,0 +1,168 @@
+package farsight.utils.idata;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.function.BiConsumer;
+
+import com.wm.data.IData;
+
+/**
+ * Hash index over a document list on one or more key paths, e.g. to look up items of <code>orders/items</code>
+ * by <code>id</code> in O(1) instead of scanning the list for every lookup.
+ *
+ * Keys are compared by <code>equals</code>, composite keys (multiple key paths) are looked up with the values in
+ * the order of the key paths. Items without a key value are not indexed, items sharing a key are kept in list
+ * order. The index is a snapshot: later changes to the list or the key values are not reflected.
+ */
+public class DataIndex {
+
+	private final DataPath[] keyPaths;
+	//key -> IData, or List<IData> for duplicate keys
+	private final HashMap<Object, Object> index;
+
+	private DataIndex(DataPath[] keyPaths, int expectedSize) {
+		this.keyPaths = keyPaths;
+		this.index = new HashMap<>(Math.max(16, expectedSize * 4 / 3 + 1));
+	}
+
+	public static DataIndex build(IData[] list, String... keyPaths) {
+		DataPath[] paths = new DataPath[keyPaths.length];
+		for(int i = 0; i < paths.length; i++)
+			paths[i] = DataPath.compile(keyPaths[i]);
+		return build(list, paths);
+	}
+
+	public static DataIndex build(IData[] list, DataPath... keyPaths) {
+		if(keyPaths.length == 0)
+			throw new IllegalArgumentException("At least one key path is required");
+		DataIndex index = new DataIndex(keyPaths, list == null ? 0 : list.length);
+		if(list != null) {
+			for(IData item: list) {
+				if(item != null)
+					index.add(item);
+			}
+		}
+		return index;
+	}
+
+	private static Object keyOf(IData item, DataPath[] keyPaths) {
+		DataBuilder builder = DataBuilder.wrap(item);
+		if(keyPaths.length == 1)
+			return builder.read(keyPaths[0]);
+		Object[] key = new Object[keyPaths.length];
+		for(int i = 0; i < key.length; i++) {
+			if((key[i] = builder.read(keyPaths[i])) == null)
+				return null;
+		}
+		return Arrays.asList(key);
+	}
+
+	private static Object lookupKey(Object[] key) {
+		return key.length == 1 ? key[0] : Arrays.asList(key);
+	}
+
+	@SuppressWarnings("unchecked")
+	private void add(IData item) {
+		Object key = keyOf(item, keyPaths);
+		if(key == null)
+			return;
+		Object present = index.putIfAbsent(key, item);
+		if(present instanceof IData) {
+			List<IData> items = new ArrayList<>(2);
+			items.add((IData) present);
+			items.add(item);
+			index.put(key, items);
+		} else if(present != null) {
+			((List<IData>) present).add(item);
+		}
+	}
+
+	/**
+	 * Number of distinct keys.
+	 */
+	public int size() {
+		return index.size();
+	}
+
+	public boolean contains(Object... key) {
+		return index.containsKey(lookupKey(key));
+	}
+
+	/**
+	 * Returns the first item with the given key, or null.
+	 */
+	public IData get(Object key) {
+		return first(index.get(key));
+	}
+
+	public IData get(Object... key) {
+		return first(index.get(lookupKey(key)));
+	}
+
+	/**
+	 * Returns all items with the given key, or an empty array.
+	 */
+	public IData[] getAll(Object... key) {
+		return all(index.get(lookupKey(key)));
+	}
+
+	@SuppressWarnings("unchecked")
+	private static IData first(Object entry) {
+		if(entry instanceof IData)
+			return (IData) entry;
+		return entry == null ? null : ((List<IData>) entry).get(0);
+	}
+
+	@SuppressWarnings("unchecked")
+	private static IData[] all(Object entry) {
+		if(entry instanceof IData)
+			return new IData[] { (IData) entry };
+		if(entry == null)
+			return new IData[0];
+		List<IData> items = (List<IData>) entry;
+		return items.toArray(new IData[items.size()]);
+	}
+
+	/**
+	 * Inner join: calls the consumer for every pair of a left item and an indexed item with an equal key. The
+	 * left key paths correspond to the key paths of this index.
+	 */
+	public void join(IData[] left, String[] leftKeyPaths, BiConsumer<IData, IData> consumer) {
+		join(left, leftKeyPaths, consumer, false);
+	}
+
+	/**
+	 * Left outer join: like {@link #join(IData[], String[], BiConsumer)}, but left items without match are
+	 * passed with <code>null</code>.
+	 */
+	public void leftJoin(IData[] left, String[] leftKeyPaths, BiConsumer<IData, IData> consumer) {
+		join(left, leftKeyPaths, consumer, true);
+	}
+
+	@SuppressWarnings("unchecked")
+	private void join(IData[] left, String[] leftKeyPaths, BiConsumer<IData, IData> consumer, boolean outer) {
+		if(leftKeyPaths.length != keyPaths.length)
+			throw new IllegalArgumentException("Expected " + keyPaths.length + " key paths for join");
+		DataPath[] paths = new DataPath[leftKeyPaths.length];
+		for(int i = 0; i < paths.length; i++)
+			paths[i] = DataPath.compile(leftKeyPaths[i]);
+
+		for(IData item: left) {
+			if(item == null)
+				continue;
+			Object key = keyOf(item, paths);
+			Object entry = key == null ? null : index.get(key);
+			if(entry instanceof IData) {
+				consumer.accept(item, (IData) entry);
+			} else if(entry != null) {
+				for(IData match: (List<IData>) entry)
+					consumer.accept(item, match);
+			} else if(outer) {
+				consumer.accept(item, null);
+			}
+		}
+	}
+
+}
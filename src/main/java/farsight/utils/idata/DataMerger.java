@@ -0,0 +1,189 @@
+package farsight.utils.idata;
+
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import com.wm.data.IData;
+import com.wm.data.IDataCursor;
+
+/**
+ * Recursive single pass merge of an overlay into a target IData.
+ *
+ * The overlay is traversed once, keys missing in the target are appended, present keys are merged according
+ * to the strategy configured for their path (or the default strategy). Paths are key names separated by
+ * <code>/</code>; array items share the path of their array. Values of the overlay are not copied, so the
+ * effort is proportional to the size of the overlay (given the target supports keyed lookups efficiently,
+ * see {@link HashedIData}).
+ *
+ * Instances are immutable and may be shared between threads.
+ */
+public class DataMerger {
+
+	public static enum Strategy {
+		/** documents are merged recursively, all other values are overwritten */
+		MERGE,
+		/** values are overwritten */
+		OVERWRITE,
+		/** present (non-null) values are kept */
+		KEEP,
+		/** arrays are concatenated, otherwise like MERGE */
+		APPEND,
+		/** document lists are merged item by item, items are matched by a key field; otherwise like MERGE */
+		MERGE_BY_KEY
+	}
+
+	public static final DataMerger DEFAULT = builder().build();
+
+	private static class Node {
+		private final HashMap<String, Node> children = new HashMap<>();
+		private Strategy strategy = null;
+		private String keyField = null;
+	}
+
+	public static class Builder {
+
+		private final Node root = new Node();
+		private Strategy defaultStrategy = Strategy.MERGE;
+
+		private Builder() {
+
+		}
+
+		private Node node(String path) {
+			Node node = root;
+			for(String key: path.split("/")) {
+				node = node.children.computeIfAbsent(key, k -> new Node());
+			}
+			return node;
+		}
+
+		public Builder defaultStrategy(Strategy strategy) {
+			this.defaultStrategy = strategy;
+			return this;
+		}
+
+		public Builder strategy(String path, Strategy strategy) {
+			if(strategy == Strategy.MERGE_BY_KEY)
+				throw new IllegalArgumentException("Use mergeByKey(path, keyField) to merge by key");
+			node(path).strategy = strategy;
+			return this;
+		}
+
+		public Builder mergeByKey(String path, String keyField) {
+			Node node = node(path);
+			node.strategy = Strategy.MERGE_BY_KEY;
+			node.keyField = keyField;
+			return this;
+		}
+
+		public DataMerger build() {
+			return new DataMerger(this);
+		}
+	}
+
+	private final Node root;
+	private final Strategy defaultStrategy;
+
+	private DataMerger(Builder builder) {
+		this.root = builder.root;
+		this.defaultStrategy = builder.defaultStrategy;
+	}
+
+	public static Builder builder() {
+		return new Builder();
+	}
+
+	/**
+	 * Merges the overlay into the target and returns the target.
+	 */
+	public IData merge(IData target, IData overlay) {
+		if(target != overlay)
+			merge(target, overlay, root);
+		return target;
+	}
+
+	private void merge(IData target, IData overlay, Node node) {
+		IDataCursor o = overlay.getCursor(), t = target.getCursor();
+		while(o.next()) {
+			String key = o.getKey();
+			Object value = o.getValue();
+			Node child = node == null ? null : node.children.get(key);
+			if(t.first(key)) {
+				t.setValue(mergeValue(t.getValue(), value, child));
+			} else {
+				t.last();
+				t.insertAfter(key, value);
+			}
+		}
+	}
+
+	private Object mergeValue(Object current, Object value, Node node) {
+		Strategy strategy = node != null && node.strategy != null ? node.strategy : defaultStrategy;
+		switch(strategy) {
+		case OVERWRITE:
+			return value;
+		case KEEP:
+			return current != null ? current : value;
+		case APPEND:
+			if(current instanceof Object[] && value instanceof Object[])
+				return concat((Object[]) current, (Object[]) value);
+			break;
+		case MERGE_BY_KEY:
+			if(current instanceof IData[] && value instanceof IData[])
+				return mergeByKey((IData[]) current, (IData[]) value, node);
+			break;
+		default:
+			break;
+		}
+		if(current instanceof IData && value instanceof IData && current != value) {
+			merge((IData) current, (IData) value, node);
+			return current;
+		}
+		return value;
+	}
+
+	private static Object[] concat(Object[] first, Object[] second) {
+		Class<?> type = first.getClass().getComponentType();
+		if(type != second.getClass().getComponentType())
+			type = Object.class;
+		Object[] result = (Object[]) Array.newInstance(type, first.length + second.length);
+		System.arraycopy(first, 0, result, 0, first.length);
+		System.arraycopy(second, 0, result, first.length, second.length);
+		return result;
+	}
+
+	private static Object keyOf(IData item, String keyField) {
+		if(item == null)
+			return null;
+		IDataCursor c = item.getCursor();
+		return c.first(keyField) ? c.getValue() : null;
+	}
+
+	private IData[] mergeByKey(IData[] current, IData[] overlay, Node node) {
+		HashMap<Object, IData> index = new HashMap<>(current.length * 2);
+		for(IData item: current) {
+			Object key = keyOf(item, node.keyField);
+			if(key != null)
+				index.putIfAbsent(key, item);
+		}
+
+		ArrayList<IData> unmatched = new ArrayList<>();
+		for(IData item: overlay) {
+			Object key = keyOf(item, node.keyField);
+			IData match = key == null ? null : index.get(key);
+			if(match == null)
+				unmatched.add(item);
+			else if(match != item)
+				merge(match, item, node);
+		}
+		if(unmatched.isEmpty())
+			return current;
+		IData[] result = new IData[current.length + unmatched.size()];
+		System.arraycopy(current, 0, result, 0, current.length);
+		for(int i = 0; i < unmatched.size(); i++)
+			result[current.length + i] = unmatched.get(i);
+		return result;
+	}
+
+}
@@ -0,0 +1,154 @@
+package farsight.utils.idata;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Precompiled path expression as used by {@link DataBuilder#read(DataPath)} and
+ * {@link DataBuilder#insert(DataPath, Object)}.
+ *
+ * A path is parsed once into its key and index segments (e.g. <code>a/b[2]/c</code>).
+ * Paths compiled with {@link #compile(String, char)} are interned in a bounded
+ * table that keeps recently used paths, so frequently used paths are parsed only
+ * once while one-off paths (e.g. with changing indexes) are evicted again.
+ */
+public final class DataPath {
+
+	public static final char DEFAULT_SEPARATOR = '/';
+	public static final int NO_INDEX = -1;
+
+	private static final int CACHE_LIMIT = 4096;
+	private static final ConcurrentHashMap<Character, Cache> cache = new ConcurrentHashMap<>();
+
+	/**
+	 * Two generations approximating an LRU: when the young table is full, it replaces the old one. Paths used
+	 * since are promoted back, the others are dropped.
+	 */
+	private static final class Cache {
+		private volatile ConcurrentHashMap<String, DataPath> young = new ConcurrentHashMap<>();
+		private volatile ConcurrentHashMap<String, DataPath> old = new ConcurrentHashMap<>();
+
+		private DataPath get(String path, char separator) {
+			ConcurrentHashMap<String, DataPath> current = young;
+			DataPath compiled = current.get(path);
+			if(compiled == null) {
+				compiled = old.get(path);
+				if(compiled == null)
+					compiled = parse(path, separator);
+				if(current.size() >= CACHE_LIMIT)
+					rotate(current);
+				young.putIfAbsent(path, compiled);
+			}
+			return compiled;
+		}
+
+		private synchronized void rotate(ConcurrentHashMap<String, DataPath> full) {
+			if(young == full) {
+				old = full;
+				young = new ConcurrentHashMap<>();
+			}
+		}
+	}
+
+	private final String path;
+	private final char separator;
+	private final String[] keys;
+	private final int[] indexes;
+
+	private DataPath(String path, char separator, String[] keys, int[] indexes) {
+		this.path = path;
+		this.separator = separator;
+		this.keys = keys;
+		this.indexes = indexes;
+	}
+
+	public static DataPath compile(String path) {
+		return compile(path, DEFAULT_SEPARATOR);
+	}
+
+	public static DataPath compile(String path, char separator) {
+		Cache paths = cache.get(separator);
+		if(paths == null)
+			paths = cache.computeIfAbsent(separator, key -> new Cache());
+		return paths.get(path, separator);
+	}
+
+	public static DataPath parse(String path) {
+		return parse(path, DEFAULT_SEPARATOR);
+	}
+
+	public static DataPath parse(String path, char separator) {
+		if(path == null)
+			throw new NullPointerException("path");
+
+		ArrayList<String> segments = new ArrayList<>();
+		int offset = 0, pos = path.indexOf(separator);
+		while(pos > 0) {
+			segments.add(path.substring(offset, pos));
+			offset = pos + 1;
+			pos = path.indexOf(separator, offset);
+		}
+		segments.add(path.substring(offset));
+
+		String[] keys = new String[segments.size()];
+		int[] indexes = new int[segments.size()];
+		for(int i = 0; i < keys.length; i++) {
+			String segment = segments.get(i);
+			int p = segment.indexOf('[');
+			if(p == -1) {
+				keys[i] = segment;
+				indexes[i] = NO_INDEX;
+			} else {
+				keys[i] = segment.substring(0, p);
+				indexes[i] = Integer.parseInt(segment.substring(p + 1, segment.length() - 1), 10);
+			}
+		}
+		return new DataPath(path, separator, keys, indexes);
+	}
+
+	public int size() {
+		return keys.length;
+	}
+
+	public String getKey(int segment) {
+		return keys[segment];
+	}
+
+	public int getIndex(int segment) {
+		return indexes[segment];
+	}
+
+	public boolean hasIndex(int segment) {
+		return indexes[segment] != NO_INDEX;
+	}
+
+	public char getSeparator() {
+		return separator;
+	}
+
+	public String getPath() {
+		return path;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if(this == obj)
+			return true;
+		if(!(obj instanceof DataPath))
+			return false;
+		DataPath other = (DataPath) obj;
+		return Arrays.equals(keys, other.keys) && Arrays.equals(indexes, other.indexes);
+	}
+
+	@Override
+	public int hashCode() {
+		return 31 * Arrays.hashCode(keys) + Arrays.hashCode(indexes);
+	}
+
+	@Override
+	public String toString() {
+		return path;
+	}
+
+}
@@ -0,0 +1,241 @@
+package farsight.utils.idata;
+
+import java.util.HashMap;
+import java.util.Map.Entry;
+
+import com.wm.data.IData;
+import com.wm.data.IDataCursor;
+import com.wm.data.IDataFactory;
+
+/**
+ * Compiled projection of IData trees by include and exclude paths.
+ *
+ * Paths are key names separated by <code>/</code>, <code>*</code> matches any key; array items share the path of
+ * their array. If include paths are given, only included subtrees (and the documents leading to them) are kept,
+ * otherwise everything is kept. Excluded subtrees are always removed. The paths are compiled into a trie, so
+ * pruning or copying takes one traversal, which does not descend into subtrees that are excluded or that are
+ * kept as a whole.
+ *
+ * Instances are immutable and may be shared between threads.
+ */
+public class DataProjection {
+
+	private static class Node {
+		private final HashMap<String, Node> children = new HashMap<>();
+		private Node wildcard = null;
+		private boolean include = false, exclude = false;
+
+		private boolean isLeaf() {
+			return children.isEmpty() && wildcard == null;
+		}
+
+		private Node match(String key) {
+			Node child = children.get(key);
+			return child == null ? wildcard : child;
+		}
+
+		private Node child(String key) {
+			if(key.equals("*"))
+				return wildcard == null ? wildcard = new Node() : wildcard;
+			return children.computeIfAbsent(key, k -> new Node());
+		}
+	}
+
+	public static class Builder {
+
+		private final Node root = new Node();
+		private boolean hasIncludes = false;
+		private char separator = DataPath.DEFAULT_SEPARATOR;
+
+		private Builder() {
+
+		}
+
+		private Node node(String path) {
+			Node node = root;
+			int offset = 0, pos;
+			while((pos = path.indexOf(separator, offset)) != -1) {
+				node = node.child(path.substring(offset, pos));
+				offset = pos + 1;
+			}
+			return node.child(path.substring(offset));
+		}
+
+		public Builder separator(char separator) {
+			this.separator = separator;
+			return this;
+		}
+
+		public Builder include(String... paths) {
+			for(String path: paths)
+				node(path).include = true;
+			hasIncludes |= paths.length > 0;
+			return this;
+		}
+
+		public Builder exclude(String... paths) {
+			for(String path: paths)
+				node(path).exclude = true;
+			return this;
+		}
+
+		public DataProjection build() {
+			resolve(root);
+			return new DataProjection(root, !hasIncludes);
+		}
+
+		//merges wildcard rules into explicit siblings, so a single lookup per key is sufficient
+		private static void resolve(Node node) {
+			if(node.wildcard != null) {
+				for(Node child: node.children.values())
+					mergeInto(child, node.wildcard);
+				resolve(node.wildcard);
+			}
+			for(Node child: node.children.values())
+				resolve(child);
+		}
+
+		private static void mergeInto(Node target, Node source) {
+			target.include |= source.include;
+			target.exclude |= source.exclude;
+			for(Entry<String, Node> entry: source.children.entrySet())
+				mergeInto(target.children.computeIfAbsent(entry.getKey(), k -> new Node()), entry.getValue());
+			if(source.wildcard != null)
+				mergeInto(target.wildcard == null ? target.wildcard = new Node() : target.wildcard, source.wildcard);
+		}
+	}
+
+	private static final Object SKIP = new Object();
+
+	private final Node root;
+	private final boolean includeAll;
+
+	private DataProjection(Node root, boolean includeAll) {
+		this.root = root;
+		this.includeAll = includeAll;
+	}
+
+	public static Builder builder() {
+		return new Builder();
+	}
+
+	public static DataProjection including(String... paths) {
+		return builder().include(paths).build();
+	}
+
+	public static DataProjection excluding(String... paths) {
+		return builder().exclude(paths).build();
+	}
+
+	/**
+	 * Removes everything not selected by this projection from the given IData (in place).
+	 */
+	public IData prune(IData data) {
+		if(data != null)
+			prune(data, root, includeAll);
+		return data;
+	}
+
+	/**
+	 * Returns a new IData containing everything selected by this projection. Documents leading to selected
+	 * values are copied, subtrees that are selected as a whole are shared with the source.
+	 */
+	public IData project(IData data) {
+		return data == null ? null : project(data, root, includeAll);
+	}
+
+	// prune
+
+	private boolean prune(IData data, Node node, boolean included) {
+		boolean empty = true;
+		IDataCursor c = data.getCursor();
+		if(c.first()) {
+			boolean valid = true;
+			while(valid) {
+				if(keep(c.getValue(), node.match(c.getKey()), included)) {
+					empty = false;
+					valid = c.next();
+				} else {
+					//after deletion the cursor is positioned on the following entry
+					valid = c.hasMoreData();
+					c.delete();
+				}
+			}
+		}
+		return !empty;
+	}
+
+	private boolean keep(Object value, Node child, boolean included) {
+		if(child != null) {
+			if(child.exclude)
+				return false;
+			included |= child.include;
+		}
+		if(child == null || child.isLeaf())
+			return included;
+
+		if(value instanceof IData) {
+			return prune((IData) value, child, included) || included;
+		} else if(value instanceof IData[]) {
+			boolean kept = false;
+			for(IData item: (IData[]) value) {
+				if(item != null)
+					kept |= prune(item, child, included);
+			}
+			return kept || included;
+		}
+		return included;
+	}
+
+	// project
+
+	private IData project(IData data, Node node, boolean included) {
+		IData target = null;
+		IDataCursor from = data.getCursor(), into = null;
+		while(from.next()) {
+			Object value = project(from.getValue(), node.match(from.getKey()), included);
+			if(value != SKIP) {
+				if(target == null) {
+					target = IDataFactory.create();
+					into = target.getCursor();
+				}
+				into.insertAfter(from.getKey(), value);
+			}
+		}
+		return target == null && included ? IDataFactory.create() : target;
+	}
+
+	//returns the projected value, or SKIP if nothing is selected
+	private Object project(Object value, Node child, boolean included) {
+		if(child != null) {
+			if(child.exclude)
+				return SKIP;
+			included |= child.include;
+		}
+		if(child == null || child.isLeaf())
+			return included ? value : SKIP;
+
+		if(value instanceof IData) {
+			IData projected = project((IData) value, child, included);
+			return projected == null ? SKIP : projected;
+		} else if(value instanceof IData[]) {
+			IData[] source = (IData[]) value, target = new IData[source.length];
+			boolean kept = false;
+			for(int i = 0; i < source.length; i++) {
+				if(source[i] != null) {
+					target[i] = project(source[i], child, included);
+					kept |= target[i] != null;
+				}
+			}
+			if(!kept && !included)
+				return SKIP;
+			for(int i = 0; i < source.length; i++) {
+				if(source[i] != null && target[i] == null)
+					target[i] = IDataFactory.create();
+			}
+			return target;
+		}
+		return included ? value : SKIP;
+	}
+
+}
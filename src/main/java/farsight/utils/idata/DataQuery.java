@@ -0,0 +1,273 @@
+package farsight.utils.idata;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import com.wm.data.IData;
+import com.wm.data.IDataCursor;
+
+/**
+ * Compiled query that selects all values matching a path pattern, e.g. <code>orders/*&#47;items[*]/sku</code>.
+ *
+ * Each segment consists of a key, or <code>*</code> for all keys (including duplicates), optionally followed by
+ * a selector that is applied to array values:
+ * <ul>
+ * <li><code>[n]</code> item at index n, negative indexes count from the end</li>
+ * <li><code>[*]</code> all items</li>
+ * <li><code>[from:to]</code> slice of items, both bounds are optional and may be negative</li>
+ * <li><code>[field=value]</code>, <code>[field!=value]</code> all documents whose field (does not) equal the
+ * value; also applicable to a single document</li>
+ * </ul>
+ * Results are produced lazily while walking the tree, no intermediate lists are built. Values that are not
+ * IData are skipped where a path continues, as are <code>null</code> array items. A compiled query is immutable
+ * and may be reused and shared between threads.
+ */
+public class DataQuery {
+
+	private static enum SelectorType { NONE, INDEX, SLICE, EQUALS, NOT_EQUALS }
+
+	private static class Segment {
+		private final String key;
+		private final SelectorType type;
+		private final int from, to;
+		private final String field, value;
+
+		private Segment(String key, SelectorType type, int from, int to, String field, String value) {
+			this.key = key;
+			this.type = type;
+			this.from = from;
+			this.to = to;
+			this.field = field;
+			this.value = value;
+		}
+
+		private boolean matchesKey(String key) {
+			return this.key == null || this.key.equals(key);
+		}
+
+		private boolean matches(Object item) {
+			if(!(item instanceof IData))
+				return false;
+			IDataCursor c = ((IData) item).getCursor();
+			Object fieldValue = c.first(field) ? c.getValue() : null;
+			boolean equal = fieldValue != null && value.equals(String.valueOf(fieldValue));
+			return type == SelectorType.EQUALS ? equal : !equal;
+		}
+	}
+
+	private final String query;
+	private final Segment[] segments;
+
+	private DataQuery(String query, Segment[] segments) {
+		this.query = query;
+		this.segments = segments;
+	}
+
+	public static DataQuery compile(String query) {
+		return compile(query, DataPath.DEFAULT_SEPARATOR);
+	}
+
+	public static DataQuery compile(String query, char separator) {
+		ArrayList<Segment> segments = new ArrayList<>();
+		int offset = 0;
+		while(offset <= query.length()) {
+			//separators within selectors do not count
+			int pos = offset, brackets = 0;
+			for(; pos < query.length(); pos++) {
+				char ch = query.charAt(pos);
+				if(ch == '[')
+					brackets++;
+				else if(ch == ']')
+					brackets--;
+				else if(ch == separator && brackets == 0)
+					break;
+			}
+			segments.add(parseSegment(query, query.substring(offset, pos)));
+			offset = pos + 1;
+		}
+		return new DataQuery(query, segments.toArray(new Segment[segments.size()]));
+	}
+
+	private static Segment parseSegment(String query, String segment) {
+		int p = segment.indexOf('[');
+		String key = p == -1 ? segment : segment.substring(0, p);
+		if(key.equals("*"))
+			key = null;
+		if(p == -1)
+			return new Segment(key, SelectorType.NONE, 0, 0, null, null);
+
+		if(!segment.endsWith("]"))
+			throw new IllegalArgumentException("Unterminated selector in query: " + query);
+		String selector = segment.substring(p + 1, segment.length() - 1).trim();
+		try {
+			if(selector.equals("*"))
+				return new Segment(key, SelectorType.SLICE, 0, Integer.MAX_VALUE, null, null);
+			int eq = selector.indexOf('=');
+			if(eq > 0) {
+				boolean not = selector.charAt(eq - 1) == '!';
+				String field = selector.substring(0, not ? eq - 1 : eq).trim();
+				String value = unquote(selector.substring(eq + 1).trim());
+				return new Segment(key, not ? SelectorType.NOT_EQUALS : SelectorType.EQUALS, 0, 0, field, value);
+			}
+			int colon = selector.indexOf(':');
+			if(colon != -1) {
+				String from = selector.substring(0, colon).trim(), to = selector.substring(colon + 1).trim();
+				return new Segment(key, SelectorType.SLICE, from.isEmpty() ? 0 : Integer.parseInt(from),
+						to.isEmpty() ? Integer.MAX_VALUE : Integer.parseInt(to), null, null);
+			}
+			return new Segment(key, SelectorType.INDEX, Integer.parseInt(selector), 0, null, null);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid selector '" + selector + "' in query: " + query, e);
+		}
+	}
+
+	private static String unquote(String value) {
+		if(value.length() >= 2 && (value.charAt(0) == '\'' || value.charAt(0) == '"')
+				&& value.charAt(value.length() - 1) == value.charAt(0))
+			return value.substring(1, value.length() - 1);
+		return value;
+	}
+
+	public Iterator<Object> iterator(IData root) {
+		return new Matches(root);
+	}
+
+	public Stream<Object> stream(IData root) {
+		return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator(root),
+				Spliterator.ORDERED | Spliterator.NONNULL), false);
+	}
+
+	public <T> Stream<T> stream(IData root, Class<T> type) {
+		return stream(root).filter(type::isInstance).map(type::cast);
+	}
+
+	public Object first(IData root) {
+		Iterator<Object> matches = iterator(root);
+		return matches.hasNext() ? matches.next() : null;
+	}
+
+	@Override
+	public String toString() {
+		return query;
+	}
+
+	/**
+	 * Candidates of one segment within a parent document.
+	 */
+	private static class Candidates {
+		private final Segment segment;
+		private final IDataCursor cursor;
+		private Object[] array = null;
+		private int pos, end;
+
+		private Candidates(Segment segment, IData parent) {
+			this.segment = segment;
+			this.cursor = parent.getCursor();
+		}
+
+		private boolean nextEntry() {
+			return segment.key == null ? cursor.next() : cursor.next(segment.key);
+		}
+
+		//returns the next candidate, or null if there is none
+		private Object next() {
+			while(true) {
+				//remaining array items
+				while(array != null && pos < end) {
+					Object item = array[pos++];
+					if(item != null && (segment.type == SelectorType.INDEX || segment.type == SelectorType.SLICE
+							|| segment.matches(item)))
+						return item;
+				}
+				array = null;
+
+				if(!nextEntry())
+					return null;
+				Object value = cursor.getValue();
+				if(value == null)
+					continue;
+				switch(segment.type) {
+				case NONE:
+					return value;
+				case EQUALS:
+				case NOT_EQUALS:
+					if(value instanceof Object[])
+						select((Object[]) value, 0, Integer.MAX_VALUE);
+					else if(segment.matches(value))
+						return value;
+					break;
+				case INDEX:
+					if(value instanceof Object[]) {
+						int length = ((Object[]) value).length;
+						int index = segment.from < 0 ? length + segment.from : segment.from;
+						if(index >= 0 && index < length)
+							select((Object[]) value, index, index + 1);
+					}
+					break;
+				case SLICE:
+					if(value instanceof Object[])
+						select((Object[]) value, segment.from, segment.to);
+					break;
+				}
+			}
+		}
+
+		private void select(Object[] array, int from, int to) {
+			int length = array.length;
+			this.array = array;
+			this.pos = Math.max(0, Math.min(length, from < 0 ? length + from : from));
+			this.end = Math.max(0, Math.min(length, to < 0 ? length + to : to));
+		}
+	}
+
+	private class Matches implements Iterator<Object> {
+		private final Candidates[] levels = new Candidates[segments.length];
+		private int depth = 0;
+		private Object next = null;
+
+		private Matches(IData root) {
+			if(root != null)
+				levels[0] = new Candidates(segments[0], root);
+			else
+				depth = -1;
+		}
+
+		private Object advance() {
+			int last = segments.length - 1;
+			while(depth >= 0) {
+				Object value = levels[depth].next();
+				if(value == null) {
+					levels[depth--] = null;
+				} else if(depth == last) {
+					return value;
+				} else if(value instanceof IData) {
+					depth++;
+					levels[depth] = new Candidates(segments[depth], (IData) value);
+				}
+			}
+			return null;
+		}
+
+		@Override
+		public boolean hasNext() {
+			if(next == null)
+				next = advance();
+			return next != null;
+		}
+
+		@Override
+		public Object next() {
+			if(!hasNext())
+				throw new NoSuchElementException();
+			Object result = next;
+			next = null;
+			return result;
+		}
+	}
+
+}
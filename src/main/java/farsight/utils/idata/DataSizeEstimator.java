@@ -0,0 +1,147 @@
+package farsight.utils.idata;
+
+import java.lang.reflect.Array;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import com.wm.data.IData;
+import com.wm.data.IDataCursor;
+
+/**
+ * Fast estimation of the retained heap size of IData trees, without serializing them.
+ *
+ * The estimate assumes a 64 bit VM with compressed references (12 byte object headers, 4 byte references, 8 byte
+ * alignment) and two bytes per string character. Objects referenced more than once are counted once. The size of
+ * documents is estimated per entry, as the internal layout of IData implementations is not known; objects of
+ * unknown types are counted with a shallow size. So the result is an approximation suited for comparisons with a
+ * budget, not an exact measurement.
+ */
+public class DataSizeEstimator {
+
+	public static final long UNLIMITED = Long.MAX_VALUE;
+
+	private static final int REFERENCE = 4, ARRAY_HEADER = 16;
+	private static final int STRING = 24, BOX = 16, WIDE_BOX = 24, DATE = 24, BIG_NUMBER = 40;
+	private static final int DOCUMENT = 48, DOCUMENT_ENTRY = 24;
+	private static final int COLLECTION = 40, MAP_ENTRY = 32;
+	private static final int UNKNOWN = 16;
+
+	private final Set<Object> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+	private final ArrayDeque<Object> pending = new ArrayDeque<>();
+	private final long budget;
+	private long size = 0;
+
+	private DataSizeEstimator(long budget) {
+		this.budget = budget;
+	}
+
+	/**
+	 * Estimates the retained size of the given IData in bytes.
+	 */
+	public static long estimate(IData data) {
+		return estimate(data, UNLIMITED);
+	}
+
+	/**
+	 * Estimates the retained size of the given IData in bytes, but stops as soon as the estimate exceeds the
+	 * budget. The result is then some value greater than the budget.
+	 */
+	public static long estimate(IData data, long budget) {
+		return new DataSizeEstimator(budget).run(data);
+	}
+
+	/**
+	 * Returns true if the estimated retained size of the given IData exceeds the budget.
+	 */
+	public static boolean exceeds(IData data, long budget) {
+		return estimate(data, budget) > budget;
+	}
+
+	private static long align(long size) {
+		return (size + 7) & ~7L;
+	}
+
+	private long run(Object root) {
+		add(root);
+		while(size <= budget && !pending.isEmpty())
+			expand(pending.pop());
+		return size;
+	}
+
+	//counts the shallow size and queues values that reference further objects
+	private void add(Object value) {
+		if(value == null || !visited.add(value))
+			return;
+		if(value instanceof String) {
+			size += STRING + align(ARRAY_HEADER + 2L * ((String) value).length());
+		} else if(value instanceof IData) {
+			size += DOCUMENT;
+			pending.push(value);
+		} else if(value instanceof Object[]) {
+			size += align(ARRAY_HEADER + (long) REFERENCE * ((Object[]) value).length);
+			pending.push(value);
+		} else if(value instanceof Long || value instanceof Double) {
+			size += WIDE_BOX;
+		} else if(value instanceof Number || value instanceof Boolean || value instanceof Character) {
+			size += value instanceof BigDecimal || value instanceof BigInteger ? BIG_NUMBER : BOX;
+		} else if(value instanceof Date) {
+			size += DATE;
+		} else if(value instanceof byte[]) {
+			size += align(ARRAY_HEADER + ((byte[]) value).length);
+		} else if(value instanceof char[] || value instanceof short[]) {
+			size += align(ARRAY_HEADER + 2L * Array.getLength(value));
+		} else if(value instanceof int[] || value instanceof float[]) {
+			size += align(ARRAY_HEADER + 4L * Array.getLength(value));
+		} else if(value instanceof long[] || value instanceof double[]) {
+			size += align(ARRAY_HEADER + 8L * Array.getLength(value));
+		} else if(value instanceof boolean[]) {
+			size += align(ARRAY_HEADER + ((boolean[]) value).length);
+		} else if(value instanceof Collection || value instanceof Map) {
+			size += COLLECTION;
+			pending.push(value);
+		} else {
+			size += UNKNOWN;
+		}
+	}
+
+	private void expand(Object value) {
+		if(value instanceof IData) {
+			IDataCursor c = ((IData) value).getCursor();
+			while(c.next() && size <= budget) {
+				size += DOCUMENT_ENTRY;
+				add(c.getKey());
+				add(c.getValue());
+			}
+		} else if(value instanceof Object[]) {
+			for(Object item: (Object[]) value) {
+				if(size > budget)
+					return;
+				add(item);
+			}
+		} else if(value instanceof Collection) {
+			size += align((long) REFERENCE * ((Collection<?>) value).size());
+			for(Object item: (Collection<?>) value) {
+				if(size > budget)
+					return;
+				add(item);
+			}
+		} else if(value instanceof Map) {
+			for(Entry<?, ?> entry: ((Map<?, ?>) value).entrySet()) {
+				if(size > budget)
+					return;
+				size += MAP_ENTRY;
+				add(entry.getKey());
+				add(entry.getValue());
+			}
+		}
+	}
+
+}
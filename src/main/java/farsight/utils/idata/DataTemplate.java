@@ -0,0 +1,56 @@
+package farsight.utils.idata;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+import com.wm.data.IData;
+import com.wm.data.IDataCursor;
+
+/**
+ * Template for creating many similar IData instances with copy-on-write semantics.
+ *
+ * Instances created by {@link #instance()} start as a shallow copy of the template. Nested IData and arrays are
+ * shared with the template until they are first written through the returned {@link DataBuilder}, only then
+ * the path to the modified node is copied. Thus built instances share unchanged subtrees with the template and
+ * with each other; call {@link DataBuilder#materialize()} if the result has to be modified in place later.
+ * Nodes handed out by the builder's read methods are copied first if still shared.
+ *
+ * The template itself must not be modified while instances are in use.
+ */
+public class DataTemplate {
+
+	private final IData template;
+	private final Set<Object> nodes;
+
+	public DataTemplate(IData template) {
+		this.template = template;
+		Set<Object> nodes = Collections.newSetFromMap(new IdentityHashMap<>());
+		collect(template, nodes);
+		this.nodes = Collections.unmodifiableSet(nodes);
+	}
+
+	private static void collect(Object value, Set<Object> nodes) {
+		if(value instanceof IData) {
+			if(nodes.add(value)) {
+				IDataCursor c = ((IData) value).getCursor();
+				while(c.next())
+					collect(c.getValue(), nodes);
+			}
+		} else if(value instanceof Object[]) {
+			if(nodes.add(value)) {
+				for(Object item: (Object[]) value)
+					collect(item, nodes);
+			}
+		}
+	}
+
+	public IData getIData() {
+		return template;
+	}
+
+	public DataBuilder instance() {
+		return DataBuilder.copyOnWrite(template, nodes);
+	}
+
+}
@@ -0,0 +1,180 @@
+package farsight.utils.idata;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Objects;
+
+import com.wm.data.IData;
+import com.wm.data.IDataCursor;
+import com.wm.util.coder.IDataCodable;
+
+/**
+ * The structure of a recurring kind of document: its keys in order and the expected kind of value per key (string,
+ * document or document list of a nested shape, or anything). Used by the {@link ShapedIDataCoder}.
+ *
+ * A document matches a shape if it has exactly the keys of the shape in the same order. Values are not part of
+ * the match, a value of an unexpected kind is just encoded generically. Shapes are immutable and may be shared.
+ */
+public final class DocumentShape {
+
+	enum Kind { STRING, DOCUMENT, DOCUMENT_LIST, ANY }
+
+	public static class Builder {
+
+		private final ArrayList<String> keys = new ArrayList<>();
+		private final ArrayList<Kind> kinds = new ArrayList<>();
+		private final ArrayList<DocumentShape> shapes = new ArrayList<>();
+
+		private Builder() {
+		}
+
+		private Builder add(String key, Kind kind, DocumentShape shape) {
+			keys.add(key);
+			kinds.add(kind);
+			shapes.add(shape);
+			return this;
+		}
+
+		public Builder string(String key) {
+			return add(key, Kind.STRING, null);
+		}
+
+		public Builder document(String key, DocumentShape shape) {
+			return add(key, Kind.DOCUMENT, shape);
+		}
+
+		public Builder documentList(String key, DocumentShape itemShape) {
+			return add(key, Kind.DOCUMENT_LIST, itemShape);
+		}
+
+		/**
+		 * A key whose value is encoded generically.
+		 */
+		public Builder any(String key) {
+			return add(key, Kind.ANY, null);
+		}
+
+		public DocumentShape build() {
+			return new DocumentShape(keys.toArray(new String[keys.size()]), kinds.toArray(new Kind[kinds.size()]),
+					shapes.toArray(new DocumentShape[shapes.size()]));
+		}
+	}
+
+	final String[] keys;
+	final Kind[] kinds;
+	final DocumentShape[] shapes;
+	private final int fingerprint;
+
+	private DocumentShape(String[] keys, Kind[] kinds, DocumentShape[] shapes) {
+		for(int i = 0; i < kinds.length; i++) {
+			if((kinds[i] == Kind.DOCUMENT || kinds[i] == Kind.DOCUMENT_LIST) && shapes[i] == null)
+				throw new IllegalArgumentException("Missing shape of key " + keys[i]);
+		}
+		this.keys = keys;
+		this.kinds = kinds;
+		this.shapes = shapes;
+		int hash = 1;
+		for(int i = 0; i < keys.length; i++) {
+			hash = hash * 31 + Objects.hashCode(keys[i]);
+			hash = hash * 31 + kinds[i].ordinal();
+			hash = hash * 31 + (shapes[i] == null ? 0 : shapes[i].fingerprint);
+		}
+		this.fingerprint = hash;
+	}
+
+	public static Builder builder() {
+		return new Builder();
+	}
+
+	/**
+	 * Learns the shape of a sample document. Strings, documents and document lists (shaped by their first item)
+	 * are expected where the sample has them, anything else is encoded generically.
+	 */
+	public static DocumentShape of(IData sample) {
+		Builder builder = builder();
+		IDataCursor c = sample.getCursor();
+		while(c.next()) {
+			String key = c.getKey();
+			Object value = c.getValue();
+			if(value instanceof String) {
+				builder.string(key);
+			} else if(value instanceof IData && !(value instanceof IDataCodable)) {
+				builder.document(key, of((IData) value));
+			} else if(value instanceof IData[]) {
+				IData item = firstItem((IData[]) value);
+				if(item != null)
+					builder.documentList(key, of(item));
+				else
+					builder.any(key);
+			} else {
+				builder.any(key);
+			}
+		}
+		return builder.build();
+	}
+
+	private static IData firstItem(IData[] items) {
+		for(IData item: items) {
+			if(item != null && !(item instanceof IDataCodable))
+				return item;
+		}
+		return null;
+	}
+
+	/**
+	 * Returns true if the document has exactly the keys of this shape in the same order.
+	 */
+	public boolean matches(IData document) {
+		IDataCursor c = document.getCursor();
+		for(String key: keys) {
+			if(!c.next() || !Objects.equals(key, c.getKey()))
+				return false;
+		}
+		return !c.next();
+	}
+
+	public int size() {
+		return keys.length;
+	}
+
+	/**
+	 * Hash of the structure, recorded by the coder to detect data of a different shape.
+	 */
+	public int getFingerprint() {
+		return fingerprint;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if(this == obj)
+			return true;
+		if(!(obj instanceof DocumentShape))
+			return false;
+		DocumentShape other = (DocumentShape) obj;
+		return fingerprint == other.fingerprint && Arrays.equals(keys, other.keys) && Arrays.equals(kinds, other.kinds)
+				&& Arrays.equals(shapes, other.shapes);
+	}
+
+	@Override
+	public int hashCode() {
+		return fingerprint;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder("{");
+		for(int i = 0; i < keys.length; i++) {
+			if(i > 0)
+				sb.append(", ");
+			sb.append(keys[i]).append(": ");
+			switch(kinds[i]) {
+			case STRING: sb.append("string"); break;
+			case DOCUMENT: sb.append(shapes[i]); break;
+			case DOCUMENT_LIST: sb.append(shapes[i]).append("[]"); break;
+			default: sb.append("any");
+			}
+		}
+		return sb.append('}').toString();
+	}
+
+}
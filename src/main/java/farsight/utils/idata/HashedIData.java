@@ -0,0 +1,424 @@
+package farsight.utils.idata;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+import com.wm.data.DataException;
+import com.wm.data.IData;
+import com.wm.data.IDataCursor;
+
+/**
+ * Array backed IData implementation with an open addressing key index.
+ *
+ * Insertion order and duplicate keys are preserved like with {@link com.wm.data.IDataFactory#create()}, but keyed
+ * lookups (<code>first(key)</code>, <code>next(key)</code>, ...) do not scan all entries. Appending entries and
+ * keyed lookups are O(1); deleting entries and inserting in the middle are O(n) since entries are shifted, but the
+ * key index is updated in place instead of being rebuilt.
+ *
+ * Cursors are position based: a structural change made through one cursor may shift the entry another cursor
+ * is positioned on. The deprecated cursor types are adapters over {@link #getCursor()}.
+ */
+public class HashedIData extends AbstractIData implements Serializable {
+
+	private static final long serialVersionUID = 8130580126452213374L;
+
+	private static final int DEFAULT_CAPACITY = 8;
+	//below this size a linear scan is cheaper than maintaining the index
+	private static final int INDEX_THRESHOLD = 8;
+	private static final int NONE = -1;
+
+	private String[] keys;
+	private Object[] values;
+	private int size = 0;
+
+	//slot -> first entry with key + 1, 0 marks an empty slot
+	private transient int[] table;
+	//entry -> next entry with equal key
+	private transient int[] nextSame;
+	private transient boolean indexed = false;
+
+	public HashedIData() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	public HashedIData(int capacity) {
+		capacity = Math.max(capacity, 1);
+		keys = new String[capacity];
+		values = new Object[capacity];
+	}
+
+	public static HashedIData create() {
+		return new HashedIData();
+	}
+
+	public static HashedIData copyOf(IData source) {
+		HashedIData copy = new HashedIData();
+		IDataCursor c = source.getCursor();
+		while(c.next())
+			copy.add(copy.size, c.getKey(), c.getValue());
+		return copy;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	// -- storage --
+
+	private static int hash(String key) {
+		if(key == null)
+			return 0;
+		int h = key.hashCode();
+		return h ^ (h >>> 16);
+	}
+
+	private static boolean keyEquals(String a, String b) {
+		return a == b || (a != null && a.equals(b));
+	}
+
+	private void ensureCapacity(int capacity) {
+		if(capacity > keys.length) {
+			int newCapacity = Math.max(capacity, keys.length + (keys.length >> 1) + 1);
+			keys = Arrays.copyOf(keys, newCapacity);
+			values = Arrays.copyOf(values, newCapacity);
+			if(nextSame != null)
+				nextSame = Arrays.copyOf(nextSame, newCapacity);
+		}
+	}
+
+	private void add(int pos, String key, Object value) {
+		ensureCapacity(size + 1);
+		if(pos < size) {
+			if(indexed)
+				shift(pos, 1);
+			System.arraycopy(keys, pos, keys, pos + 1, size - pos);
+			System.arraycopy(values, pos, values, pos + 1, size - pos);
+		}
+		keys[pos] = key;
+		values[pos] = value;
+		size++;
+		if(indexed) {
+			if(size * 2 > table.length)
+				indexed = false;
+			else
+				link(pos);
+		}
+	}
+
+	private void remove(int pos) {
+		if(indexed) {
+			unlink(pos);
+			shift(pos + 1, -1);
+		}
+		int moved = size - pos - 1;
+		if(moved > 0) {
+			System.arraycopy(keys, pos + 1, keys, pos, moved);
+			System.arraycopy(values, pos + 1, values, pos, moved);
+		}
+		size--;
+		keys[size] = null;
+		values[size] = null;
+	}
+
+	private void setKey(int pos, String key) {
+		if(indexed)
+			unlink(pos);
+		keys[pos] = key;
+		if(indexed)
+			link(pos);
+	}
+
+	// -- key index --
+
+	private void buildIndex() {
+		int capacity = Integer.highestOneBit(Math.max(size, INDEX_THRESHOLD) * 4 - 1) << 1;
+		if(table == null || table.length != capacity)
+			table = new int[capacity];
+		else
+			Arrays.fill(table, 0);
+		if(nextSame == null || nextSame.length < keys.length)
+			nextSame = new int[keys.length];
+		for(int i = 0; i < size; i++)
+			link(i);
+		indexed = true;
+	}
+
+	//links an entry into the chain of its key, chains are ordered by position
+	private void link(int entry) {
+		String key = keys[entry];
+		int mask = table.length - 1;
+		for(int slot = hash(key) & mask;; slot = (slot + 1) & mask) {
+			int head = table[slot] - 1;
+			if(head == NONE) {
+				nextSame[entry] = NONE;
+				table[slot] = entry + 1;
+				return;
+			}
+			if(keyEquals(keys[head], key)) {
+				if(entry < head) {
+					nextSame[entry] = head;
+					table[slot] = entry + 1;
+					return;
+				}
+				while(nextSame[head] != NONE && nextSame[head] < entry)
+					head = nextSame[head];
+				nextSame[entry] = nextSame[head];
+				nextSame[head] = entry;
+				return;
+			}
+		}
+	}
+
+	//removes an entry from the chain of its key
+	private void unlink(int entry) {
+		String key = keys[entry];
+		int mask = table.length - 1;
+		int slot = hash(key) & mask;
+		while(!keyEquals(keys[table[slot] - 1], key))
+			slot = (slot + 1) & mask;
+		int head = table[slot] - 1;
+		if(head != entry) {
+			while(nextSame[head] != entry)
+				head = nextSame[head];
+			nextSame[head] = nextSame[entry];
+		} else if(nextSame[entry] != NONE) {
+			table[slot] = nextSame[entry] + 1;
+		} else {
+			clearSlot(slot);
+		}
+	}
+
+	//empties a slot and moves following slots of the probe sequence back, so that they stay reachable
+	private void clearSlot(int slot) {
+		int mask = table.length - 1;
+		for(int next = (slot + 1) & mask; table[next] != 0; next = (next + 1) & mask) {
+			int home = hash(keys[table[next] - 1]) & mask;
+			if(((next - home) & mask) >= ((next - slot) & mask)) {
+				table[slot] = table[next];
+				slot = next;
+			}
+		}
+		table[slot] = 0;
+	}
+
+	//moves the indexed positions of the entries from the given one on, before the entries are shifted
+	private void shift(int from, int delta) {
+		for(int slot = 0; slot < table.length; slot++) {
+			if(table[slot] > from)
+				table[slot] += delta;
+		}
+		System.arraycopy(nextSame, from, nextSame, from + delta, size - from);
+		for(int i = 0; i < size + delta; i++) {
+			if(nextSame[i] >= from)
+				nextSame[i] += delta;
+		}
+	}
+
+	private int head(String key) {
+		if(!indexed)
+			buildIndex();
+		int mask = table.length - 1;
+		for(int slot = hash(key) & mask;; slot = (slot + 1) & mask) {
+			int head = table[slot] - 1;
+			if(head == NONE || keyEquals(keys[head], key))
+				return head;
+		}
+	}
+
+	int indexOf(String key, int from) {
+		if(size <= INDEX_THRESHOLD) {
+			for(int i = Math.max(from, 0); i < size; i++)
+				if(keyEquals(keys[i], key))
+					return i;
+			return NONE;
+		}
+		int entry = head(key);
+		while(entry != NONE && entry < from)
+			entry = nextSame[entry];
+		return entry;
+	}
+
+	int lastIndexOf(String key, int before) {
+		if(size <= INDEX_THRESHOLD) {
+			for(int i = Math.min(before, size) - 1; i >= 0; i--)
+				if(keyEquals(keys[i], key))
+					return i;
+			return NONE;
+		}
+		int found = NONE;
+		for(int entry = head(key); entry != NONE && entry < before; entry = nextSame[entry])
+			found = entry;
+		return found;
+	}
+
+	// -- IData --
+
+	@Override
+	public IDataCursor getCursor() {
+		return new Cursor(NONE);
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder b = new StringBuilder("{");
+		for(int i = 0; i < size; i++) {
+			if(i > 0)
+				b.append(", ");
+			b.append(keys[i]).append('=');
+			b.append(values[i] instanceof Object[] ? Arrays.deepToString((Object[]) values[i]) : String.valueOf(values[i]));
+		}
+		return b.append('}').toString();
+	}
+
+	private class Cursor implements IDataCursor {
+
+		private int pos;
+
+		private Cursor(int pos) {
+			this.pos = pos;
+		}
+
+		private boolean isValid() {
+			return pos >= 0 && pos < size;
+		}
+
+		private boolean moveTo(int entry) {
+			if(entry == NONE)
+				return false;
+			pos = entry;
+			return true;
+		}
+
+		@Override
+		public void setErrorMode(int mode) {
+		}
+
+		@Override
+		public DataException getLastError() {
+			return null;
+		}
+
+		@Override
+		public boolean hasMoreErrors() {
+			return false;
+		}
+
+		@Override
+		public void home() {
+			pos = NONE;
+		}
+
+		@Override
+		public String getKey() {
+			return isValid() ? keys[pos] : null;
+		}
+
+		@Override
+		public void setKey(String key) {
+			if(isValid())
+				HashedIData.this.setKey(pos, key);
+		}
+
+		@Override
+		public Object getValue() {
+			return isValid() ? values[pos] : null;
+		}
+
+		@Override
+		public void setValue(Object value) {
+			if(isValid())
+				values[pos] = value;
+		}
+
+		@Override
+		public boolean delete() {
+			if(!isValid())
+				return false;
+			//cursor stays at position, which is now the following entry
+			remove(pos);
+			return true;
+		}
+
+		@Override
+		public void insertBefore(String key, Object value) {
+			pos = Math.min(Math.max(pos, 0), size);
+			add(pos, key, value);
+		}
+
+		@Override
+		public void insertAfter(String key, Object value) {
+			pos = Math.min(pos + 1, size);
+			add(pos, key, value);
+		}
+
+		@Override
+		public IData insertDataBefore(String key) {
+			IData data = new HashedIData();
+			insertBefore(key, data);
+			return data;
+		}
+
+		@Override
+		public IData insertDataAfter(String key) {
+			IData data = new HashedIData();
+			insertAfter(key, data);
+			return data;
+		}
+
+		@Override
+		public boolean next() {
+			return pos + 1 < size && moveTo(pos + 1);
+		}
+
+		@Override
+		public boolean next(String key) {
+			return moveTo(indexOf(key, pos + 1));
+		}
+
+		@Override
+		public boolean previous() {
+			return pos > 0 && moveTo(Math.min(pos, size) - 1);
+		}
+
+		@Override
+		public boolean previous(String key) {
+			return moveTo(lastIndexOf(key, pos));
+		}
+
+		@Override
+		public boolean first() {
+			return size > 0 && moveTo(0);
+		}
+
+		@Override
+		public boolean first(String key) {
+			return moveTo(indexOf(key, 0));
+		}
+
+		@Override
+		public boolean last() {
+			return size > 0 && moveTo(size - 1);
+		}
+
+		@Override
+		public boolean last(String key) {
+			return moveTo(lastIndexOf(key, size));
+		}
+
+		@Override
+		public boolean hasMoreData() {
+			return pos + 1 < size;
+		}
+
+		@Override
+		public void destroy() {
+		}
+
+		@Override
+		public IDataCursor getCursorClone() {
+			return new Cursor(pos);
+		}
+
+	}
+
+}
@@ -0,0 +1,673 @@
+package farsight.utils.idata;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.NotSerializableException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.lang.reflect.Array;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.function.Predicate;
+
+import com.wm.data.IData;
+import com.wm.data.IDataCursor;
+import com.wm.data.IDataFactory;
+import com.wm.util.coder.IDataCodable;
+import com.wm.util.coder.IDataCoder;
+
+/**
+ * Compact binary IDataCoder for internal persistence and transfer.
+ *
+ * Layout:
+ * <pre>
+ * header   magic "FIDB", version (1 byte), length of the rest (int32)
+ * strings  varint count, then varint UTF-8 length and bytes per string
+ * body     tagged root value
+ * </pre>
+ * Keys and short strings are written once to the string dictionary and referenced by a varint index. Values are
+ * written as a type tag followed by the value; numbers use (zigzag) varints, primitive arrays and byte[] are
+ * written natively. Documents and object arrays are prefixed by their length in bytes (int32), so readers can skip
+ * them without decoding. IDataCodable values are written as document and restored via their default constructor,
+ * other values are written by Java serialization. When decoding, only IDataCodable classes are instantiated, and
+ * serialized values may only consist of the classes of {@link #isSerializableByDefault(String)} and those allowed
+ * by the coder, see {@link #IDataBinaryCoder(Predicate)}. Counts and lengths are checked against the available
+ * data, documents read from streams are limited in size and nesting is limited in depth, so corrupt input fails
+ * with an IOException.
+ *
+ * Decoded documents are equivalent to the encoded ones: keys, order and value types are kept, IData
+ * implementations are replaced by {@link IDataFactory#create()}. Instances hold no state and may be shared.
+ */
+public class IDataBinaryCoder extends IDataCoder {
+
+	static final byte[] MAGIC = { 'F', 'I', 'D', 'B' };
+	static final int VERSION = 1;
+	static final int HEADER_SIZE = 9;
+
+	/** strings longer than this are written inline */
+	static final int DICTIONARY_MAX_LENGTH = 256;
+
+	static final int T_NULL = 0;
+	static final int T_STRING_REF = 1;
+	static final int T_STRING = 2;
+	static final int T_DOCUMENT = 3;
+	static final int T_DOCUMENT_LIST = 4;
+	static final int T_STRING_ARRAY = 5;
+	static final int T_OBJECT_ARRAY = 6;
+	static final int T_INTEGER = 7;
+	static final int T_LONG = 8;
+	static final int T_SHORT = 9;
+	static final int T_BYTE = 10;
+	static final int T_CHARACTER = 11;
+	static final int T_FLOAT = 12;
+	static final int T_DOUBLE = 13;
+	static final int T_TRUE = 14;
+	static final int T_FALSE = 15;
+	static final int T_BIG_DECIMAL = 16;
+	static final int T_BIG_INTEGER = 17;
+	static final int T_DATE = 18;
+	static final int T_BYTES = 19;
+	static final int T_INT_ARRAY = 20;
+	static final int T_LONG_ARRAY = 21;
+	static final int T_SHORT_ARRAY = 22;
+	static final int T_CHAR_ARRAY = 23;
+	static final int T_FLOAT_ARRAY = 24;
+	static final int T_DOUBLE_ARRAY = 25;
+	static final int T_BOOLEAN_ARRAY = 26;
+	static final int T_CODABLE = 27;
+	static final int T_SERIALIZED = 28;
+
+	private static final int INITIAL_BUFFER_SIZE = 4096;
+
+	/** default maximum size of documents read from streams */
+	public static final int DEFAULT_MAX_LENGTH = 256 * 1024 * 1024;
+	/** maximum nesting of documents and arrays */
+	static final int MAX_DEPTH = 512;
+
+	private static final String[] SERIALIZABLE_PACKAGES = { "java.lang", "java.util", "java.math", "java.time" };
+	private static final Set<String> SERIALIZABLE_CLASSES = new HashSet<>(Arrays.asList(
+			"java.sql.Date", "java.sql.Time", "java.sql.Timestamp"));
+
+	private final Predicate<String> serializable;
+	private final int maxLength;
+
+	public IDataBinaryCoder() {
+		this(name -> false);
+	}
+
+	/**
+	 * Creates a coder that restores serialized values also of the classes accepted by the predicate (by name, the
+	 * component type for arrays), besides the default ones.
+	 */
+	public IDataBinaryCoder(Predicate<String> serializableClasses) {
+		this(serializableClasses, DEFAULT_MAX_LENGTH);
+	}
+
+	/**
+	 * Like {@link #IDataBinaryCoder(Predicate)}, documents larger than <code>maxLength</code> bytes are rejected
+	 * by {@link #decode(InputStream)}.
+	 */
+	public IDataBinaryCoder(Predicate<String> serializableClasses, int maxLength) {
+		if(maxLength < 1)
+			throw new IllegalArgumentException("Maximum length must be positive");
+		this.serializable = serializableClasses;
+		this.maxLength = maxLength;
+	}
+
+	/**
+	 * Returns true for the classes restored from serialized values by default: primitives and the classes of the
+	 * packages java.lang, java.util, java.math, java.time (without sub packages) and the java.sql date types.
+	 */
+	public static boolean isSerializableByDefault(String className) {
+		if(SERIALIZABLE_CLASSES.contains(className))
+			return true;
+		int dot = className.lastIndexOf('.');
+		if(dot < 0)
+			return false;
+		String packageName = className.substring(0, dot);
+		for(String name: SERIALIZABLE_PACKAGES) {
+			if(name.equals(packageName))
+				return true;
+		}
+		return false;
+	}
+
+	@Override
+	public void encode(OutputStream os, IData data) throws IOException {
+		Encoder encoder = new Encoder();
+		encoder.writeValue(data);
+		encoder.writeHeader().writeTo(os);
+		encoder.body.writeTo(os);
+	}
+
+	@Override
+	public byte[] encodeToBytes(IData data) throws IOException {
+		Encoder encoder = new Encoder();
+		encoder.writeValue(data);
+		BinaryOutput header = encoder.writeHeader();
+		byte[] bytes = new byte[header.size() + encoder.body.size()];
+		System.arraycopy(header.buffer(), 0, bytes, 0, header.size());
+		System.arraycopy(encoder.body.buffer(), 0, bytes, header.size(), encoder.body.size());
+		return bytes;
+	}
+
+	/**
+	 * Reads exactly one encoded document from the stream.
+	 */
+	@Override
+	public IData decode(InputStream is) throws IOException {
+		int length = readHeader(is, VERSION, maxLength);
+		return decode(new BinaryInput(BinaryInput.readFully(is, length), 0, length));
+	}
+
+	@Override
+	public IData decodeFromBytes(byte[] bytes) throws IOException {
+		BinaryInput in = new BinaryInput(bytes, 0, bytes.length);
+		int length = readRest(in);
+		return decode(new BinaryInput(bytes, HEADER_SIZE, length));
+	}
+
+	private IData decode(BinaryInput in) throws IOException {
+		Object value;
+		try {
+			value = new Decoder(readDictionary(in), serializable).readValue(in);
+		} catch (RuntimeException e) {
+			//any failure on malformed data is reported as such
+			throw new IOException("Invalid data: " + e, e);
+		}
+		if(value != null && !(value instanceof IData))
+			throw new IOException("Invalid data: root is not a document");
+		return (IData) value;
+	}
+
+	//returns the length of the rest
+	static int readHeader(BinaryInput in) throws IOException {
+		return readHeader(in, VERSION);
+	}
+
+	static int readHeader(BinaryInput in, int expectedVersion) throws IOException {
+		for(byte b: MAGIC) {
+			if(in.readByte() != b)
+				throw new IOException("Invalid data: not a binary IData document");
+		}
+		int version = in.readByte();
+		if(version != expectedVersion)
+			throw new IOException("Unsupported version: " + version);
+		int length = in.readInt();
+		if(length < 0)
+			throw new IOException("Invalid length: " + length);
+		return length;
+	}
+
+	//reads the header from a stream, returns the length of the rest which is checked against the maximum
+	static int readHeader(InputStream is, int expectedVersion, int maxLength) throws IOException {
+		int length = readHeader(new BinaryInput(BinaryInput.readFully(is, HEADER_SIZE), 0, HEADER_SIZE), expectedVersion);
+		if(length > maxLength)
+			throw new IOException("Document of " + length + " bytes exceeds the maximum of " + maxLength + " bytes");
+		return length;
+	}
+
+	//reads the header of data in a byte array, returns the length of the rest which is checked to be available
+	static int readRest(BinaryInput in, int expectedVersion) throws IOException {
+		int length = readHeader(in, expectedVersion);
+		if(length > in.remaining())
+			throw new EOFException("Unexpected end of data: " + length + " bytes announced, " + in.remaining() + " available");
+		return length;
+	}
+
+	static int readRest(BinaryInput in) throws IOException {
+		return readRest(in, VERSION);
+	}
+
+	static String[] readDictionary(BinaryInput in) throws IOException {
+		String[] dictionary = new String[in.readCount(1)];
+		for(int i = 0; i < dictionary.length; i++)
+			dictionary[i] = in.readString();
+		return dictionary;
+	}
+
+	// encoding
+
+	static class Encoder {
+
+		final BinaryOutput body = new BinaryOutput(INITIAL_BUFFER_SIZE);
+		private final HashMap<String, Integer> index = new HashMap<>();
+		private final ArrayList<String> strings = new ArrayList<>();
+
+		BinaryOutput writeHeader() {
+			return writeHeader(VERSION);
+		}
+
+		BinaryOutput writeHeader(int version) {
+			BinaryOutput header = new BinaryOutput(INITIAL_BUFFER_SIZE);
+			header.writeBytes(MAGIC, 0, MAGIC.length);
+			header.writeByte(version);
+			int length = header.beginLength();
+			header.writeVarint(strings.size());
+			for(String string: strings)
+				header.writeString(string);
+			header.setInt(length, header.size() - HEADER_SIZE + body.size());
+			return header;
+		}
+
+		int ref(String value) {
+			Integer ref = index.get(value);
+			if(ref == null) {
+				ref = strings.size();
+				index.put(value, ref);
+				strings.add(value);
+			}
+			return ref;
+		}
+
+		//null keys are written as 0
+		void writeKey(String key) {
+			body.writeVarint(key == null ? 0 : ref(key) + 1);
+		}
+
+		void writeString(String value) {
+			if(value.length() <= DICTIONARY_MAX_LENGTH) {
+				body.writeByte(T_STRING_REF);
+				body.writeVarint(ref(value));
+			} else {
+				body.writeByte(T_STRING);
+				body.writeString(value);
+			}
+		}
+
+		void writeDocument(IData document) throws IOException {
+			body.writeByte(T_DOCUMENT);
+			int length = body.beginLength();
+			IDataCursor c = document.getCursor();
+			while(c.next()) {
+				writeKey(c.getKey());
+				writeValue(c.getValue());
+			}
+			body.endLength(length);
+		}
+
+		void writeArray(int tag, Object[] array) throws IOException {
+			body.writeByte(tag);
+			int length = body.beginLength();
+			if(tag == T_OBJECT_ARRAY)
+				body.writeVarint(ref(array.getClass().getComponentType().getName()));
+			body.writeVarint(array.length);
+			for(Object item: array)
+				writeValue(item);
+			body.endLength(length);
+		}
+
+		void writeValue(Object value) throws IOException {
+			if(value == null) {
+				body.writeByte(T_NULL);
+			} else if(value instanceof String) {
+				writeString((String) value);
+			} else if(value instanceof IDataCodable) {
+				body.writeByte(T_CODABLE);
+				body.writeVarint(ref(value.getClass().getName()));
+				writeValue(((IDataCodable) value).getIData());
+			} else if(value instanceof IData) {
+				writeDocument((IData) value);
+			} else if(value instanceof Object[]) {
+				Class<?> type = value.getClass().getComponentType();
+				writeArray(type == IData.class ? T_DOCUMENT_LIST : type == String.class ? T_STRING_ARRAY : T_OBJECT_ARRAY,
+						(Object[]) value);
+			} else if(value instanceof Integer) {
+				body.writeByte(T_INTEGER);
+				body.writeZigZag((Integer) value);
+			} else if(value instanceof Long) {
+				body.writeByte(T_LONG);
+				body.writeZigZag((Long) value);
+			} else if(value instanceof Boolean) {
+				body.writeByte((Boolean) value ? T_TRUE : T_FALSE);
+			} else if(value instanceof Double) {
+				body.writeByte(T_DOUBLE);
+				body.writeLong(Double.doubleToRawLongBits((Double) value));
+			} else if(value instanceof Float) {
+				body.writeByte(T_FLOAT);
+				body.writeInt(Float.floatToRawIntBits((Float) value));
+			} else if(value instanceof Short) {
+				body.writeByte(T_SHORT);
+				body.writeZigZag((Short) value);
+			} else if(value instanceof Byte) {
+				body.writeByte(T_BYTE);
+				body.writeByte((Byte) value);
+			} else if(value instanceof Character) {
+				body.writeByte(T_CHARACTER);
+				body.writeVarint((Character) value);
+			} else if(value.getClass() == BigDecimal.class) {
+				body.writeByte(T_BIG_DECIMAL);
+				body.writeString(value.toString());
+			} else if(value.getClass() == BigInteger.class) {
+				writeBytes(T_BIG_INTEGER, ((BigInteger) value).toByteArray());
+			} else if(value.getClass() == Date.class) {
+				body.writeByte(T_DATE);
+				body.writeZigZag(((Date) value).getTime());
+			} else if(value instanceof byte[]) {
+				writeBytes(T_BYTES, (byte[]) value);
+			} else if(value.getClass().isArray() && value.getClass().getComponentType().isPrimitive()) {
+				writePrimitiveArray(value);
+			} else if(value instanceof Serializable) {
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+				try (ObjectOutputStream oos = new ObjectOutputStream(bytes)) {
+					oos.writeObject(value);
+				}
+				writeBytes(T_SERIALIZED, bytes.toByteArray());
+			} else {
+				throw new NotSerializableException(value.getClass().getName());
+			}
+		}
+
+		private void writeBytes(int tag, byte[] bytes) {
+			body.writeByte(tag);
+			body.writeVarint(bytes.length);
+			body.writeBytes(bytes, 0, bytes.length);
+		}
+
+		private void writePrimitiveArray(Object array) {
+			int length = Array.getLength(array);
+			if(array instanceof int[]) {
+				body.writeByte(T_INT_ARRAY);
+				body.writeVarint(length);
+				for(int value: (int[]) array)
+					body.writeZigZag(value);
+			} else if(array instanceof long[]) {
+				body.writeByte(T_LONG_ARRAY);
+				body.writeVarint(length);
+				for(long value: (long[]) array)
+					body.writeZigZag(value);
+			} else if(array instanceof short[]) {
+				body.writeByte(T_SHORT_ARRAY);
+				body.writeVarint(length);
+				for(short value: (short[]) array)
+					body.writeZigZag(value);
+			} else if(array instanceof char[]) {
+				body.writeByte(T_CHAR_ARRAY);
+				body.writeVarint(length);
+				for(char value: (char[]) array)
+					body.writeVarint(value);
+			} else if(array instanceof float[]) {
+				body.writeByte(T_FLOAT_ARRAY);
+				body.writeVarint(length);
+				for(float value: (float[]) array)
+					body.writeInt(Float.floatToRawIntBits(value));
+			} else if(array instanceof double[]) {
+				body.writeByte(T_DOUBLE_ARRAY);
+				body.writeVarint(length);
+				for(double value: (double[]) array)
+					body.writeLong(Double.doubleToRawLongBits(value));
+			} else {
+				body.writeByte(T_BOOLEAN_ARRAY);
+				body.writeVarint(length);
+				for(boolean value: (boolean[]) array)
+					body.writeByte(value ? 1 : 0);
+			}
+		}
+	}
+
+	// decoding
+
+	static class Decoder {
+
+		final String[] dictionary;
+		private final Predicate<String> serializable;
+		private int depth = 0;
+
+		Decoder(String[] dictionary) {
+			this(dictionary, name -> false);
+		}
+
+		Decoder(String[] dictionary, Predicate<String> serializable) {
+			this.dictionary = dictionary;
+			this.serializable = serializable;
+		}
+
+		String string(BinaryInput in) throws IOException {
+			int ref = in.readLength();
+			if(ref >= dictionary.length)
+				throw new IOException("Invalid string reference: " + ref);
+			return entry(ref);
+		}
+
+		String readKey(BinaryInput in) throws IOException {
+			int ref = in.readLength();
+			if(ref > dictionary.length)
+				throw new IOException("Invalid key reference: " + ref);
+			return ref == 0 ? null : entry(ref - 1);
+		}
+
+		//dictionary entry of a checked reference, overridden to decode entries on demand
+		String entry(int ref) throws IOException {
+			return dictionary[ref];
+		}
+
+		//called around nested documents and arrays, deeply nested input would overflow the stack otherwise
+		void enter() throws IOException {
+			if(++depth > MAX_DEPTH)
+				throw new IOException("Invalid data: nested deeper than " + MAX_DEPTH + " levels");
+		}
+
+		void exit() {
+			depth--;
+		}
+
+		/**
+		 * Reads the entries of a document, the input is positioned behind the length.
+		 */
+		IData readDocument(BinaryInput in, int length) throws IOException {
+			enter();
+			try {
+				int end = in.position() + length;
+				IData document = IDataFactory.create();
+				IDataCursor c = document.getCursor();
+				while(in.position() < end)
+					c.insertAfter(readKey(in), readValue(in));
+				return document;
+			} finally {
+				exit();
+			}
+		}
+
+		Object readValue(BinaryInput in) throws IOException {
+			int tag = in.readByte();
+			switch(tag) {
+			case T_NULL:
+				return null;
+			case T_STRING_REF:
+				return string(in);
+			case T_STRING:
+				return in.readString();
+			case T_DOCUMENT:
+				return readDocument(in, in.readInt());
+			case T_DOCUMENT_LIST:
+				in.readInt();
+				return readItems(in, new IData[in.readCount(1)]);
+			case T_STRING_ARRAY:
+				in.readInt();
+				return readItems(in, new String[in.readCount(1)]);
+			case T_OBJECT_ARRAY:
+				in.readInt();
+				Class<?> type = componentType(string(in));
+				return readItems(in, (Object[]) Array.newInstance(type, in.readCount(1)));
+			case T_INTEGER:
+				return (int) in.readZigZag();
+			case T_LONG:
+				return in.readZigZag();
+			case T_SHORT:
+				return (short) in.readZigZag();
+			case T_BYTE:
+				return (byte) in.readByte();
+			case T_CHARACTER:
+				return (char) in.readVarint();
+			case T_FLOAT:
+				return Float.intBitsToFloat(in.readInt());
+			case T_DOUBLE:
+				return Double.longBitsToDouble(in.readLong());
+			case T_TRUE:
+				return Boolean.TRUE;
+			case T_FALSE:
+				return Boolean.FALSE;
+			case T_BIG_DECIMAL:
+				return readNumber(in, T_BIG_DECIMAL);
+			case T_BIG_INTEGER:
+				return readNumber(in, T_BIG_INTEGER);
+			case T_DATE:
+				return new Date(in.readZigZag());
+			case T_BYTES:
+				return in.readBytes(in.readLength());
+			case T_CODABLE:
+				return readCodable(string(in), readValue(in));
+			case T_SERIALIZED:
+				return readSerialized(in.readBytes(in.readLength()));
+			default:
+				return readPrimitiveArray(in, tag);
+			}
+		}
+
+		private Object[] readItems(BinaryInput in, Object[] array) throws IOException {
+			enter();
+			try {
+				for(int i = 0; i < array.length; i++)
+					array[i] = readValue(in);
+			} catch (ArrayStoreException e) {
+				throw new IOException("Invalid data: item does not match the array type", e);
+			} finally {
+				exit();
+			}
+			return array;
+		}
+
+		private static Object readNumber(BinaryInput in, int tag) throws IOException {
+			try {
+				return tag == T_BIG_DECIMAL ? new BigDecimal(in.readString()) : new BigInteger(in.readBytes(in.readLength()));
+			} catch (NumberFormatException e) {
+				throw new IOException("Invalid data: malformed number", e);
+			}
+		}
+
+		private Object readPrimitiveArray(BinaryInput in, int tag) throws IOException {
+			int length;
+			switch(tag) {
+			case T_INT_ARRAY:
+				int[] ints = new int[length = in.readCount(1)];
+				for(int i = 0; i < length; i++)
+					ints[i] = (int) in.readZigZag();
+				return ints;
+			case T_LONG_ARRAY:
+				long[] longs = new long[length = in.readCount(1)];
+				for(int i = 0; i < length; i++)
+					longs[i] = in.readZigZag();
+				return longs;
+			case T_SHORT_ARRAY:
+				short[] shorts = new short[length = in.readCount(1)];
+				for(int i = 0; i < length; i++)
+					shorts[i] = (short) in.readZigZag();
+				return shorts;
+			case T_CHAR_ARRAY:
+				char[] chars = new char[length = in.readCount(1)];
+				for(int i = 0; i < length; i++)
+					chars[i] = (char) in.readVarint();
+				return chars;
+			case T_FLOAT_ARRAY:
+				float[] floats = new float[length = in.readCount(4)];
+				for(int i = 0; i < length; i++)
+					floats[i] = Float.intBitsToFloat(in.readInt());
+				return floats;
+			case T_DOUBLE_ARRAY:
+				double[] doubles = new double[length = in.readCount(8)];
+				for(int i = 0; i < length; i++)
+					doubles[i] = Double.longBitsToDouble(in.readLong());
+				return doubles;
+			case T_BOOLEAN_ARRAY:
+				boolean[] booleans = new boolean[length = in.readCount(1)];
+				for(int i = 0; i < length; i++)
+					booleans[i] = in.readByte() != 0;
+				return booleans;
+			default:
+				throw new IOException("Invalid data: unknown type tag " + tag);
+			}
+		}
+
+		private static Class<?> componentType(String name) {
+			try {
+				return Class.forName(name, false, loader());
+			} catch (ClassNotFoundException | LinkageError e) {
+				return Object.class;
+			}
+		}
+
+		private static ClassLoader loader() {
+			ClassLoader loader = Thread.currentThread().getContextClassLoader();
+			return loader != null ? loader : IDataBinaryCoder.class.getClassLoader();
+		}
+
+		private static Object readCodable(String className, Object data) throws IOException {
+			if(data != null && !(data instanceof IData))
+				throw new IOException("Invalid data: IDataCodable " + className + " is not a document");
+			try {
+				//checked before the class is initialized or instantiated
+				Class<?> type = Class.forName(className, false, loader());
+				if(!IDataCodable.class.isAssignableFrom(type))
+					throw new IOException("Invalid data: " + className + " is not an IDataCodable");
+				IDataCodable codable = (IDataCodable) type.getDeclaredConstructor().newInstance();
+				codable.setIData((IData) data);
+				return codable;
+			} catch (ReflectiveOperationException | RuntimeException | LinkageError e) {
+				throw new IOException("Cannot restore IDataCodable " + className, e);
+			}
+		}
+
+		private boolean isSerializable(String className) {
+			//array classes are checked by their component type
+			int dimensions = 0;
+			while(dimensions < className.length() && className.charAt(dimensions) == '[')
+				dimensions++;
+			if(dimensions > 0) {
+				if(className.length() == dimensions + 1)
+					return true; //primitive
+				if(className.charAt(dimensions) != 'L' || !className.endsWith(";"))
+					return false;
+				className = className.substring(dimensions + 1, className.length() - 1);
+			}
+			return isSerializableByDefault(className) || serializable.test(className);
+		}
+
+		private Object readSerialized(byte[] bytes) throws IOException {
+			try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes)) {
+				@Override
+				protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+					if(!isSerializable(desc.getName()))
+						throw new InvalidClassException(desc.getName(), "Class is not allowed in serialized values");
+					try {
+						return Class.forName(desc.getName(), false, loader());
+					} catch (ClassNotFoundException e) {
+						return super.resolveClass(desc);
+					}
+				}
+
+				@Override
+				protected Class<?> resolveProxyClass(String[] interfaces) throws IOException {
+					throw new InvalidClassException("Proxy classes are not allowed in serialized values");
+				}
+			}) {
+				return in.readObject();
+			} catch (ClassNotFoundException e) {
+				throw new IOException("Cannot restore serialized value", e);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,236 @@
+package farsight.utils.idata;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.lang.reflect.Array;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.UUID;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
+
+import com.wm.data.IData;
+import com.wm.data.IDataCursor;
+import com.wm.data.IDataFactory;
+import com.wm.util.coder.IDataCodable;
+
+/**
+ * Structural deep copy of IData trees.
+ *
+ * Other than {@link com.wm.data.IDataUtil#deepClone(IData)} this does not serialize the whole tree, but walks
+ * IData, arrays and primitive arrays directly. Immutable values (Strings, boxed primitives, ...) are shared,
+ * references that occur multiple times (including cycles) are copied only once. Values of unknown types are
+ * copied by Java serialization if possible, or shared otherwise. Handlers may be registered for custom types.
+ *
+ * Instances are immutable and may be shared between threads.
+ */
+public class IDataCopier {
+
+	/**
+	 * Copies a value of a custom type. Nested values may be deep copied using the given copier, which keeps
+	 * track of shared references.
+	 */
+	@FunctionalInterface
+	public static interface Handler<T> {
+		public T copy(T value, UnaryOperator<Object> copier);
+	}
+
+	public static final IDataCopier DEFAULT = builder().build();
+
+	private static final Set<Class<?>> IMMUTABLE_TYPES = new HashSet<>(Arrays.asList(String.class, Boolean.class,
+			Character.class, Byte.class, Short.class, Integer.class, Long.class, Float.class, Double.class,
+			BigInteger.class, BigDecimal.class, Class.class, Locale.class, UUID.class));
+
+	public static class Builder {
+
+		private final LinkedHashMap<Class<?>, Handler<?>> handlers = new LinkedHashMap<>();
+		private Supplier<IData> factory = IDataFactory::create;
+		private boolean serializeUnknown = true;
+
+		private Builder() {
+
+		}
+
+		public <T> Builder handler(Class<T> type, Handler<? super T> handler) {
+			handlers.put(type, handler);
+			return this;
+		}
+
+		public Builder factory(Supplier<IData> factory) {
+			this.factory = factory;
+			return this;
+		}
+
+		/**
+		 * If disabled, values of unknown types are shared instead of copied by serialization.
+		 */
+		public Builder serializeUnknown(boolean serializeUnknown) {
+			this.serializeUnknown = serializeUnknown;
+			return this;
+		}
+
+		public IDataCopier build() {
+			return new IDataCopier(this);
+		}
+
+	}
+
+	private final Map<Class<?>, Handler<?>> handlers;
+	private final Supplier<IData> factory;
+	private final boolean serializeUnknown;
+
+	private IDataCopier(Builder builder) {
+		this.handlers = new LinkedHashMap<>(builder.handlers);
+		this.factory = builder.factory;
+		this.serializeUnknown = builder.serializeUnknown;
+	}
+
+	public static Builder builder() {
+		return new Builder();
+	}
+
+	public IData copy(IData source) {
+		return source == null ? null : (IData) new Copy().copyValue(source);
+	}
+
+	public IData[] copy(IData[] source) {
+		return source == null ? null : (IData[]) new Copy().copyValue(source);
+	}
+
+	public Object copyValue(Object source) {
+		return new Copy().copyValue(source);
+	}
+
+	public static boolean isImmutable(Object value) {
+		return value == null || IMMUTABLE_TYPES.contains(value.getClass()) || value instanceof Enum;
+	}
+
+	private Handler<?> findHandler(Class<?> type) {
+		Handler<?> handler = handlers.get(type);
+		if(handler == null) {
+			for(Entry<Class<?>, Handler<?>> entry: handlers.entrySet()) {
+				if(entry.getKey().isAssignableFrom(type))
+					return entry.getValue();
+			}
+		}
+		return handler;
+	}
+
+	private static Object serializedCopy(Object value) throws IOException, ClassNotFoundException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+			out.writeObject(value);
+		}
+		try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+			return in.readObject();
+		}
+	}
+
+	private class Copy implements UnaryOperator<Object> {
+
+		//source -> copy, used for shared references and cycles
+		private final IdentityHashMap<Object, Object> copies = new IdentityHashMap<>();
+
+		@Override
+		public Object apply(Object value) {
+			return copyValue(value);
+		}
+
+		@SuppressWarnings("unchecked")
+		private Object copyValue(Object value) {
+			if(isImmutable(value))
+				return value;
+			Object copy = copies.get(value);
+			if(copy != null)
+				return copy;
+
+			if(!handlers.isEmpty()) {
+				Handler<Object> handler = (Handler<Object>) findHandler(value.getClass());
+				if(handler != null)
+					return remember(value, handler.copy(value, this));
+			}
+
+			if(value instanceof IData && !(value instanceof IDataCodable)) {
+				return copyIData((IData) value);
+			} else if(value instanceof Object[]) {
+				return copyArray((Object[]) value);
+			} else if(value.getClass().isArray()) {
+				int length = Array.getLength(value);
+				copy = Array.newInstance(value.getClass().getComponentType(), length);
+				System.arraycopy(value, 0, copy, 0, length);
+				return remember(value, copy);
+			} else if(value instanceof Date) {
+				return remember(value, ((Date) value).clone());
+			} else if(value instanceof IDataCodable) {
+				copy = copyCodable((IDataCodable) value);
+				if(copy != null)
+					return copy;
+			}
+			return copyUnknown(value);
+		}
+
+		private Object remember(Object value, Object copy) {
+			copies.put(value, copy);
+			return copy;
+		}
+
+		private IData copyIData(IData source) {
+			IData target = factory.get();
+			remember(source, target);
+			IDataCursor from = source.getCursor(), into = target.getCursor();
+			while(from.next()) {
+				into.insertAfter(from.getKey(), copyValue(from.getValue()));
+			}
+			return target;
+		}
+
+		private Object[] copyArray(Object[] source) {
+			Object[] target = (Object[]) Array.newInstance(source.getClass().getComponentType(), source.length);
+			remember(source, target);
+			for(int i = 0; i < source.length; i++) {
+				target[i] = copyValue(source[i]);
+			}
+			return target;
+		}
+
+		private Object copyCodable(IDataCodable source) {
+			try {
+				IDataCodable target = source.getClass().getDeclaredConstructor().newInstance();
+				remember(source, target);
+				IData data = source.getIData();
+				target.setIData(data == null ? null : (IData) copyValue(data));
+				return target;
+			} catch (ReflectiveOperationException | RuntimeException e) {
+				//no default constructor or inaccessible, try other means
+				copies.remove(source);
+				return null;
+			}
+		}
+
+		private Object copyUnknown(Object value) {
+			if(serializeUnknown && value instanceof Serializable) {
+				try {
+					return remember(value, serializedCopy(value));
+				} catch (IOException | ClassNotFoundException e) {
+					//not serializable after all (e.g. non serializable fields) - share it
+				}
+			}
+			return remember(value, value);
+		}
+
+	}
+
+}
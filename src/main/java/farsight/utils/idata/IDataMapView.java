@@ -0,0 +1,218 @@
+package farsight.utils.idata;
+
+import java.util.AbstractList;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import com.wm.data.IData;
+import com.wm.data.IDataCursor;
+
+/**
+ * Zero-copy <code>Map&lt;String, Object&gt;</code> view over an IData.
+ *
+ * Nested IData are wrapped as map views and arrays as fixed-size list views when they are accessed. Writes go
+ * through to the backing IData and arrays, and the views are unwrapped again when stored into an IData. If the IData contains
+ * duplicate keys, lookups return the first occurrence while iteration returns all entries.
+ *
+ * @see MapIData
+ */
+public class IDataMapView extends AbstractMap<String, Object> {
+
+	private final IData data;
+
+	public IDataMapView(IData data) {
+		this.data = data;
+	}
+
+	public static Map<String, Object> wrap(IData data) {
+		if(data == null)
+			return null;
+		if(data instanceof MapIData)
+			return ((MapIData) data).getMap();
+		return new IDataMapView(data);
+	}
+
+	public static List<Object> wrap(IData[] documents) {
+		return documents == null ? null : new DocumentListView(documents);
+	}
+
+	public IData getIData() {
+		return data;
+	}
+
+	/**
+	 * Converts a value of the IData world to a value of the map world, without copying nested structures.
+	 */
+	static Object toMapValue(Object value) {
+		if(value instanceof IData) {
+			return wrap((IData) value);
+		} else if(value instanceof IData[]) {
+			return new DocumentListView((IData[]) value);
+		} else if(value instanceof Object[]) {
+			return new ArrayView((Object[]) value);
+		}
+		return value;
+	}
+
+	@Override
+	public Object get(Object key) {
+		IDataCursor c = data.getCursor();
+		return key instanceof String && c.first((String) key) ? toMapValue(c.getValue()) : null;
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return key instanceof String && data.getCursor().first((String) key);
+	}
+
+	@Override
+	public Object put(String key, Object value) {
+		IDataCursor c = data.getCursor();
+		Object converted = MapIData.toIDataValue(value);
+		if(c.first(key)) {
+			Object old = c.getValue();
+			c.setValue(converted);
+			return toMapValue(old);
+		}
+		c.last();
+		c.insertAfter(key, converted);
+		return null;
+	}
+
+	@Override
+	public Object remove(Object key) {
+		IDataCursor c = data.getCursor();
+		if(key instanceof String && c.first((String) key)) {
+			Object old = c.getValue();
+			c.delete();
+			return toMapValue(old);
+		}
+		return null;
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return !data.getCursor().first();
+	}
+
+	@Override
+	public Set<Entry<String, Object>> entrySet() {
+		return new AbstractSet<Entry<String, Object>>() {
+
+			@Override
+			public Iterator<Entry<String, Object>> iterator() {
+				return new EntryIterator(data.getCursor());
+			}
+
+			@Override
+			public int size() {
+				int size = 0;
+				IDataCursor c = data.getCursor();
+				while(c.next())
+					size++;
+				return size;
+			}
+
+			@Override
+			public void clear() {
+				IDataCursor c = data.getCursor();
+				c.first();
+				while(c.delete());
+			}
+		};
+	}
+
+	private static class EntryIterator implements Iterator<Entry<String, Object>> {
+
+		private final IDataCursor cursor;
+		//after a removal the cursor is already positioned on the next entry
+		private boolean removed = false;
+		private boolean hasCurrent = false;
+
+		private EntryIterator(IDataCursor cursor) {
+			this.cursor = cursor;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return removed ? cursor.getKey() != null || cursor.hasMoreData() : cursor.hasMoreData();
+		}
+
+		@Override
+		public Entry<String, Object> next() {
+			boolean moved = removed ? cursor.getKey() != null || cursor.next() : cursor.next();
+			removed = false;
+			if(!moved)
+				throw new NoSuchElementException();
+			hasCurrent = true;
+			IDataCursor position = cursor.getCursorClone();
+			return new SimpleEntry<String, Object>(cursor.getKey(), toMapValue(cursor.getValue())) {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				public Object setValue(Object value) {
+					position.setValue(MapIData.toIDataValue(value));
+					return super.setValue(value);
+				}
+			};
+		}
+
+		@Override
+		public void remove() {
+			if(!hasCurrent)
+				throw new IllegalStateException();
+			cursor.delete();
+			removed = true;
+			hasCurrent = false;
+		}
+	}
+
+	/**
+	 * List view of an array, unwrapped by {@link MapIData#toIDataValue(Object)}.
+	 */
+	static class ArrayView extends AbstractList<Object> {
+
+		final Object[] array;
+
+		private ArrayView(Object[] array) {
+			this.array = array;
+		}
+
+		@Override
+		public Object get(int index) {
+			return toMapValue(array[index]);
+		}
+
+		@Override
+		public Object set(int index, Object value) {
+			Object old = array[index];
+			array[index] = MapIData.toIDataValue(value);
+			return toMapValue(old);
+		}
+
+		@Override
+		public int size() {
+			return array.length;
+		}
+	}
+
+	private static class DocumentListView extends ArrayView {
+
+		private DocumentListView(IData[] array) {
+			super(array);
+		}
+
+		@Override
+		public Object set(int index, Object value) {
+			if(value != null && !(MapIData.toIDataValue(value) instanceof IData))
+				throw new IllegalArgumentException("Document lists can only hold documents");
+			return super.set(index, value);
+		}
+	}
+
+}
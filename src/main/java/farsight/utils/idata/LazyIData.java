@@ -0,0 +1,170 @@
+package farsight.utils.idata;
+
+import java.io.IOException;
+import java.io.ObjectStreamException;
+import java.io.Serializable;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+
+import com.wm.data.IData;
+import com.wm.data.IDataCursor;
+
+/**
+ * IData decoded on demand from the format of the {@link IDataBinaryCoder}.
+ *
+ * Decoding a document only locates the entries of the string dictionary, strings are decoded when first
+ * referenced. The entries of a document are decoded when a cursor is requested for the first time; nested
+ * documents (also within arrays) are skipped by their length and become LazyIData themselves, so memory and CPU
+ * scale with the parts of the tree that are accessed. Decoded entries are held in a {@link HashedIData}, so keyed
+ * lookups are fast and the document can be modified as usual.
+ *
+ * The encoded bytes are referenced until all documents are decoded. Malformed data is detected when it is
+ * accessed and reported as {@link UncheckedIOException}. Java serialization writes the decoded document.
+ */
+public class LazyIData extends AbstractIData implements Serializable {
+
+	private static final long serialVersionUID = -2318845213702211436L;
+
+	private static class LazyDecoder extends IDataBinaryCoder.Decoder {
+
+		private final byte[] buffer;
+		//positions of the dictionary entries, decoded on first reference
+		private final int[] offsets;
+		private final int limit;
+		//nesting level of the document being decoded
+		private int level = 0;
+
+		private LazyDecoder(BinaryInput in, byte[] buffer) throws IOException {
+			this(in, buffer, in.readCount(1));
+		}
+
+		private LazyDecoder(BinaryInput in, byte[] buffer, int count) throws IOException {
+			super(new String[count]);
+			this.buffer = buffer;
+			this.offsets = new int[count];
+			this.limit = in.limit();
+			for(int i = 0; i < count; i++) {
+				offsets[i] = in.position();
+				in.skip(in.readLength());
+			}
+		}
+
+		@Override
+		String entry(int ref) throws IOException {
+			String value = dictionary[ref];
+			if(value == null) {
+				BinaryInput in = new BinaryInput(buffer, offsets[ref], limit - offsets[ref]);
+				dictionary[ref] = value = in.readString();
+			}
+			return value;
+		}
+
+		@Override
+		IData readDocument(BinaryInput in, int length) throws IOException {
+			if(level >= IDataBinaryCoder.MAX_DEPTH)
+				throw new IOException("Invalid data: nested deeper than " + IDataBinaryCoder.MAX_DEPTH + " levels");
+			LazyIData document = new LazyIData(this, in.position(), length, level + 1);
+			in.skip(length);
+			return document;
+		}
+	}
+
+	private transient LazyDecoder decoder;
+	private transient int offset, length, level;
+	private volatile HashedIData data = null;
+
+	private LazyIData(LazyDecoder decoder, int offset, int length, int level) {
+		this.decoder = decoder;
+		this.offset = offset;
+		this.length = length;
+		this.level = level;
+	}
+
+	/**
+	 * Returns a lazily decoded document from bytes written by the {@link IDataBinaryCoder}. The array must not
+	 * be modified afterwards.
+	 */
+	public static IData decode(byte[] bytes) throws IOException {
+		return decode(bytes, 0, bytes.length);
+	}
+
+	public static IData decode(byte[] bytes, int offset, int length) throws IOException {
+		if(offset < 0 || length < 0 || offset > bytes.length - length)
+			throw new IndexOutOfBoundsException("Invalid range: " + offset + ", " + length);
+		BinaryInput in = new BinaryInput(bytes, offset, length);
+		//checked against the given range, so that decoding never reads past it
+		int size = IDataBinaryCoder.readRest(in);
+		in = new BinaryInput(bytes, in.position(), size);
+		LazyDecoder decoder = new LazyDecoder(in, bytes);
+		Object root = decoder.readValue(in);
+		if(root != null && !(root instanceof IData))
+			throw new IOException("Invalid data: root is not a document");
+		return (IData) root;
+	}
+
+	/**
+	 * Like {@link #decode(byte[])}. Buffers without accessible array (e.g. mapped files) are copied once.
+	 */
+	public static IData decode(ByteBuffer buffer) throws IOException {
+		if(buffer.hasArray())
+			return decode(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+		byte[] bytes = new byte[buffer.remaining()];
+		buffer.duplicate().get(bytes);
+		return decode(bytes);
+	}
+
+	/**
+	 * Returns true if the entries of this document have been decoded.
+	 */
+	public boolean isMaterialized() {
+		return data != null;
+	}
+
+	private HashedIData materialize() {
+		HashedIData result = data;
+		if(result == null) {
+			synchronized(this) {
+				if((result = data) == null) {
+					try {
+						result = new HashedIData();
+						BinaryInput in = new BinaryInput(decoder.buffer, offset, length);
+						IDataCursor c = result.getCursor();
+						//documents of a tree share the decoder and its state
+						synchronized(decoder) {
+							decoder.level = level;
+							while(in.hasRemaining())
+								c.insertAfter(decoder.readKey(in), decoder.readValue(in));
+						}
+					} catch (IOException e) {
+						throw new UncheckedIOException("Cannot decode lazy document", e);
+					}
+					data = result;
+					decoder = null;
+				}
+			}
+		}
+		return result;
+	}
+
+	@Override
+	public IDataCursor getCursor() {
+		return materialize().getCursor();
+	}
+
+	/**
+	 * Number of entries (decodes the document).
+	 */
+	public int size() {
+		return materialize().size();
+	}
+
+	private Object writeReplace() throws ObjectStreamException {
+		return materialize();
+	}
+
+	@Override
+	public String toString() {
+		return materialize().toString();
+	}
+
+}
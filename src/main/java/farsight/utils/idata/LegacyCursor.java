@@ -0,0 +1,386 @@
+package farsight.utils.idata;
+
+import java.util.ArrayDeque;
+
+import com.wm.data.DataException;
+import com.wm.data.IData;
+import com.wm.data.IDataCursor;
+import com.wm.data.IDataHashCursor;
+import com.wm.data.IDataIndexCursor;
+import com.wm.data.IDataSharedCursor;
+import com.wm.data.IDataTreeCursor;
+
+/**
+ * Adapters of the deprecated cursor types over {@link IData#getCursor()}, used by {@link AbstractIData}.
+ *
+ * The methods of the deprecated interfaces are implemented by name (without <code>@Override</code>), as their
+ * declarations differ between versions of the IS API.
+ */
+class LegacyCursor implements IDataCursor {
+
+	IDataCursor cursor;
+
+	LegacyCursor(IDataCursor cursor) {
+		this.cursor = cursor;
+	}
+
+	@Override
+	public void setErrorMode(int mode) {
+		cursor.setErrorMode(mode);
+	}
+
+	@Override
+	public DataException getLastError() {
+		return cursor.getLastError();
+	}
+
+	@Override
+	public boolean hasMoreErrors() {
+		return cursor.hasMoreErrors();
+	}
+
+	@Override
+	public void home() {
+		cursor.home();
+	}
+
+	@Override
+	public String getKey() {
+		return cursor.getKey();
+	}
+
+	@Override
+	public void setKey(String key) {
+		cursor.setKey(key);
+	}
+
+	@Override
+	public Object getValue() {
+		return cursor.getValue();
+	}
+
+	@Override
+	public void setValue(Object value) {
+		cursor.setValue(value);
+	}
+
+	@Override
+	public boolean delete() {
+		return cursor.delete();
+	}
+
+	@Override
+	public void insertBefore(String key, Object value) {
+		cursor.insertBefore(key, value);
+	}
+
+	@Override
+	public void insertAfter(String key, Object value) {
+		cursor.insertAfter(key, value);
+	}
+
+	@Override
+	public IData insertDataBefore(String key) {
+		return cursor.insertDataBefore(key);
+	}
+
+	@Override
+	public IData insertDataAfter(String key) {
+		return cursor.insertDataAfter(key);
+	}
+
+	@Override
+	public boolean next() {
+		return cursor.next();
+	}
+
+	@Override
+	public boolean next(String key) {
+		return cursor.next(key);
+	}
+
+	@Override
+	public boolean previous() {
+		return cursor.previous();
+	}
+
+	@Override
+	public boolean previous(String key) {
+		return cursor.previous(key);
+	}
+
+	@Override
+	public boolean first() {
+		return cursor.first();
+	}
+
+	@Override
+	public boolean first(String key) {
+		return cursor.first(key);
+	}
+
+	@Override
+	public boolean last() {
+		return cursor.last();
+	}
+
+	@Override
+	public boolean last(String key) {
+		return cursor.last(key);
+	}
+
+	@Override
+	public boolean hasMoreData() {
+		return cursor.hasMoreData();
+	}
+
+	@Override
+	public void destroy() {
+		cursor.destroy();
+	}
+
+	@Override
+	public IDataCursor getCursorClone() {
+		return new LegacyCursor(cursor.getCursorClone());
+	}
+
+	/**
+	 * Positional access, positions start at 0.
+	 */
+	static class Index extends LegacyCursor implements IDataIndexCursor {
+
+		Index(IDataCursor cursor) {
+			super(cursor);
+		}
+
+		public boolean seek(int index) {
+			IDataCursor c = cursor.getCursorClone();
+			if(index < 0 || !c.first())
+				return false;
+			for(int i = 0; i < index; i++) {
+				if(!c.next())
+					return false;
+			}
+			cursor = c;
+			return true;
+		}
+
+		public int count() {
+			int count = 0;
+			IDataCursor c = cursor.getCursorClone();
+			c.home();
+			while(c.next())
+				count++;
+			return count;
+		}
+
+		@Override
+		public Index getCursorClone() {
+			return new Index(cursor.getCursorClone());
+		}
+	}
+
+	static class Hash extends LegacyCursor implements IDataHashCursor {
+
+		Hash(IDataCursor cursor) {
+			super(cursor);
+		}
+
+		public boolean seek(String key) {
+			return cursor.first(key);
+		}
+
+		@Override
+		public Hash getCursorClone() {
+			return new Hash(cursor.getCursorClone());
+		}
+	}
+
+	/**
+	 * Navigation into nested documents: {@link #down()} moves to the first entry of the current document value,
+	 * {@link #up()} back to the entry holding it.
+	 */
+	static class Tree extends LegacyCursor implements IDataTreeCursor {
+
+		private final ArrayDeque<IDataCursor> parents;
+
+		Tree(IDataCursor cursor) {
+			this(cursor, new ArrayDeque<>());
+		}
+
+		private Tree(IDataCursor cursor, ArrayDeque<IDataCursor> parents) {
+			super(cursor);
+			this.parents = parents;
+		}
+
+		public boolean down() {
+			Object value = cursor.getValue();
+			if(!(value instanceof IData))
+				return false;
+			IDataCursor child = ((IData) value).getCursor();
+			if(!child.first())
+				return false;
+			parents.push(cursor);
+			cursor = child;
+			return true;
+		}
+
+		public boolean up() {
+			if(parents.isEmpty())
+				return false;
+			cursor = parents.pop();
+			return true;
+		}
+
+		@Override
+		public Tree getCursorClone() {
+			ArrayDeque<IDataCursor> copy = new ArrayDeque<>();
+			for(IDataCursor parent: parents)
+				copy.addLast(parent.getCursorClone());
+			return new Tree(cursor.getCursorClone(), copy);
+		}
+	}
+
+	/**
+	 * Cursor for documents shared between threads, each operation synchronizes on the document.
+	 */
+	static class Shared implements IDataSharedCursor {
+
+		private final Object lock;
+		private final IDataCursor cursor;
+
+		Shared(IData data) {
+			this(data, data.getCursor());
+		}
+
+		private Shared(Object lock, IDataCursor cursor) {
+			this.lock = lock;
+			this.cursor = cursor;
+		}
+
+		public void home() throws DataException {
+			synchronized(lock) {
+				cursor.home();
+			}
+		}
+
+		public String getKey() throws DataException {
+			synchronized(lock) {
+				return cursor.getKey();
+			}
+		}
+
+		public void setKey(String key) throws DataException {
+			synchronized(lock) {
+				cursor.setKey(key);
+			}
+		}
+
+		public Object getValue() throws DataException {
+			synchronized(lock) {
+				return cursor.getValue();
+			}
+		}
+
+		public void setValue(Object value) throws DataException {
+			synchronized(lock) {
+				cursor.setValue(value);
+			}
+		}
+
+		public boolean delete() throws DataException {
+			synchronized(lock) {
+				return cursor.delete();
+			}
+		}
+
+		public void insertBefore(String key, Object value) throws DataException {
+			synchronized(lock) {
+				cursor.insertBefore(key, value);
+			}
+		}
+
+		public void insertAfter(String key, Object value) throws DataException {
+			synchronized(lock) {
+				cursor.insertAfter(key, value);
+			}
+		}
+
+		public IData insertDataBefore(String key) throws DataException {
+			synchronized(lock) {
+				return cursor.insertDataBefore(key);
+			}
+		}
+
+		public IData insertDataAfter(String key) throws DataException {
+			synchronized(lock) {
+				return cursor.insertDataAfter(key);
+			}
+		}
+
+		public boolean next() throws DataException {
+			synchronized(lock) {
+				return cursor.next();
+			}
+		}
+
+		public boolean next(String key) throws DataException {
+			synchronized(lock) {
+				return cursor.next(key);
+			}
+		}
+
+		public boolean previous() throws DataException {
+			synchronized(lock) {
+				return cursor.previous();
+			}
+		}
+
+		public boolean previous(String key) throws DataException {
+			synchronized(lock) {
+				return cursor.previous(key);
+			}
+		}
+
+		public boolean first() throws DataException {
+			synchronized(lock) {
+				return cursor.first();
+			}
+		}
+
+		public boolean first(String key) throws DataException {
+			synchronized(lock) {
+				return cursor.first(key);
+			}
+		}
+
+		public boolean last() throws DataException {
+			synchronized(lock) {
+				return cursor.last();
+			}
+		}
+
+		public boolean last(String key) throws DataException {
+			synchronized(lock) {
+				return cursor.last(key);
+			}
+		}
+
+		public boolean hasMoreData() throws DataException {
+			synchronized(lock) {
+				return cursor.hasMoreData();
+			}
+		}
+
+		public void destroy() {
+			cursor.destroy();
+		}
+
+		public IDataSharedCursor getCursorClone() throws DataException {
+			synchronized(lock) {
+				return new Shared(lock, cursor.getCursorClone());
+			}
+		}
+	}
+
+}
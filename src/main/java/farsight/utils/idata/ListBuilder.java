@@ -1,49 +1,119 @@
 package farsight.utils.idata;
 
-import java.util.LinkedList;
+import java.util.Arrays;
+import java.util.function.Function;
+import java.util.stream.Collector;
 
 import com.wm.data.IData;
 
 public class ListBuilder {
-	private LinkedList<DataBuilder> list = new LinkedList<>();
-	private DataBuilder template = null;
-	
+	private static final int DEFAULT_CAPACITY = 16;
+
+	//either IData or DataBuilder, builders are built when the list is built
+	private Object[] items;
+	private int size = 0;
+	private IData template = null;
+	//only in copy-on-write mode
+	private DataTemplate sharedTemplate = null;
+
 	public ListBuilder(IData template) {
-		this.template = DataBuilder.wrap(template);
+		this(template, false);
+	}
+
+	/**
+	 * @param copyOnWrite if true, items share unchanged template subtrees (see {@link DataTemplate}) instead of
+	 *            starting as deep copies of the template. The built items still share these subtrees, copy an item
+	 *            with {@link IDataCopier} before modifying its nested nodes in place.
+	 */
+	public ListBuilder(IData template, boolean copyOnWrite) {
+		this();
+		this.template = template;
+		this.sharedTemplate = template != null && copyOnWrite ? new DataTemplate(template) : null;
 	}
 
 	public ListBuilder() {
+		this(DEFAULT_CAPACITY);
 	}
-	
+
+	public ListBuilder(int capacity) {
+		items = new Object[Math.max(capacity, 1)];
+	}
+
 	public static ListBuilder create() {
 		return new ListBuilder();
 	}
 
+	public static ListBuilder create(int capacity) {
+		return new ListBuilder(capacity);
+	}
+
+	/**
+	 * Collects IData into an array. Supports parallel streams.
+	 */
+	public static Collector<IData, ?, IData[]> toIDataArray() {
+		return Collector.of(ListBuilder::new, ListBuilder::add, ListBuilder::addAll, ListBuilder::build);
+	}
+
+	/**
+	 * Maps objects to DataBuilders and collects the built IData into an array. Supports parallel streams.
+	 */
+	public static <T> Collector<T, ?, IData[]> toIDataArray(Function<? super T, DataBuilder> mapper) {
+		return Collector.of(ListBuilder::new, (list, item) -> list.add(mapper.apply(item)), ListBuilder::addAll,
+				ListBuilder::build);
+	}
+
+	private void addItem(Object item) {
+		if(size == items.length)
+			items = Arrays.copyOf(items, size + (size >> 1) + 1);
+		items[size++] = item;
+	}
+
+	private DataBuilder newItem() {
+		if(template == null)
+			return DataBuilder.create();
+		return sharedTemplate != null ? sharedTemplate.instance() : DataBuilder.wrap(template).asClone(true);
+	}
+
 	public DataBuilder add() {
-		DataBuilder builder = template == null ? DataBuilder.create() : template.asClone(true);
-		list.add(builder);
+		DataBuilder builder = newItem();
+		addItem(builder);
 		return builder;
 	}
-	
+
 	public ListBuilder add(DataBuilder builder) {
 		if(template == null) {
-			list.add(builder);
+			addItem(builder);
 		} else {
-			template.asClone(true).merge(builder.build(), true);
+			addItem(newItem().merge(builder.build(), true));
 		}
 		return this;
 	}
-	
+
 	public ListBuilder add(IData data) {
-		list.add(DataBuilder.wrap(data));
+		addItem(data);
 		return this;
 	}
-	
+
+	/**
+	 * Appends all items of the other list as they are.
+	 */
+	public ListBuilder addAll(ListBuilder other) {
+		if(size + other.size > items.length)
+			items = Arrays.copyOf(items, Math.max(size + other.size, size + (size >> 1) + 1));
+		System.arraycopy(other.items, 0, items, size, other.size);
+		size += other.size;
+		return this;
+	}
+
+	public int size() {
+		return size;
+	}
+
 	public IData[] build() {
-		IData[] finalList = new IData[list.size()];
-		int pos = 0;
-		for(DataBuilder item: list) {
-			finalList[pos++] = item.build();
+		IData[] finalList = new IData[size];
+		for(int pos = 0; pos < size; pos++) {
+			Object item = items[pos];
+			finalList[pos] = item instanceof DataBuilder ? ((DataBuilder) item).build() : (IData) item;
 		}
 		return finalList;
 	}
@@ -0,0 +1,284 @@
+package farsight.utils.idata;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Map;
+
+import com.wm.data.DataException;
+import com.wm.data.IData;
+import com.wm.data.IDataCursor;
+import com.wm.data.IDataFactory;
+
+/**
+ * Zero-copy IData facade over a <code>Map&lt;String, ?&gt;</code> (e.g. parsed JSON).
+ *
+ * Nested maps are wrapped when they are accessed and writes go through to the backing map. List views of arrays
+ * (see {@link IDataMapView}) are unwrapped to their array, so writes into it go through as well. Other collections
+ * are converted to arrays on access (only the collection itself is copied, its items are wrapped), so writes into
+ * these arrays do not reach the backing collection. Since maps have unique keys, inserting an existing key
+ * replaces its value; the entry order is the order of the map.
+ *
+ * @see IDataMapView
+ */
+public class MapIData extends AbstractIData {
+
+	private final Map<String, Object> map;
+
+	@SuppressWarnings("unchecked")
+	public MapIData(Map<String, ?> map) {
+		this.map = (Map<String, Object>) map;
+	}
+
+	public static IData wrap(Map<String, ?> map) {
+		return map == null ? null : new MapIData(map);
+	}
+
+	public Map<String, Object> getMap() {
+		return map;
+	}
+
+	/**
+	 * Converts a value of the map world to a value of the IData world, without copying nested structures.
+	 */
+	@SuppressWarnings("unchecked")
+	static Object toIDataValue(Object value) {
+		if(value instanceof IDataMapView) {
+			return ((IDataMapView) value).getIData();
+		} else if(value instanceof IDataMapView.ArrayView) {
+			return ((IDataMapView.ArrayView) value).array;
+		} else if(value instanceof Map) {
+			return new MapIData((Map<String, ?>) value);
+		} else if(value instanceof Collection) {
+			return toArray((Collection<?>) value);
+		}
+		return value;
+	}
+
+	private static Object[] toArray(Collection<?> collection) {
+		boolean allData = true, allStrings = true;
+		ArrayList<Object> items = new ArrayList<>(collection.size());
+		for(Object item: collection) {
+			item = toIDataValue(item);
+			allData &= item == null || item instanceof IData;
+			allStrings &= item == null || item instanceof String;
+			items.add(item);
+		}
+		if(items.isEmpty())
+			return new Object[0];
+		if(allData)
+			return items.toArray(new IData[items.size()]);
+		if(allStrings)
+			return items.toArray(new String[items.size()]);
+		return items.toArray();
+	}
+
+	@Override
+	public IDataCursor getCursor() {
+		return new Cursor(null, -1, null);
+	}
+
+	@Override
+	public String toString() {
+		return map.toString();
+	}
+
+	private class Cursor implements IDataCursor {
+
+		//current key and, if positional access was used, its position within the snapshot of keys
+		private String key;
+		private int pos;
+		private String[] keys;
+
+		private Cursor(String key, int pos, String[] keys) {
+			this.key = key;
+			this.pos = pos;
+			this.keys = keys;
+		}
+
+		private String[] keys() {
+			if(keys == null) {
+				keys = map.keySet().toArray(new String[map.size()]);
+				pos = -1;
+				if(key != null) {
+					for(int i = 0; i < keys.length && pos == -1; i++)
+						if(key.equals(keys[i]))
+							pos = i;
+				}
+			}
+			return keys;
+		}
+
+		private boolean moveTo(int pos) {
+			String[] keys = keys();
+			if(pos < 0 || pos >= keys.length)
+				return false;
+			this.pos = pos;
+			this.key = keys[pos];
+			return true;
+		}
+
+		private boolean isValid() {
+			return key != null && map.containsKey(key);
+		}
+
+		private void put(String key, Object value) {
+			map.put(key, IDataMapView.toMapValue(value));
+			this.key = key;
+			keys = null;
+		}
+
+		@Override
+		public void setErrorMode(int mode) {
+		}
+
+		@Override
+		public DataException getLastError() {
+			return null;
+		}
+
+		@Override
+		public boolean hasMoreErrors() {
+			return false;
+		}
+
+		@Override
+		public void home() {
+			key = null;
+			pos = -1;
+		}
+
+		@Override
+		public String getKey() {
+			return isValid() ? key : null;
+		}
+
+		@Override
+		public void setKey(String newKey) {
+			if(isValid() && !key.equals(newKey)) {
+				Object value = map.remove(key);
+				map.put(newKey, value);
+				key = newKey;
+				keys = null;
+			}
+		}
+
+		@Override
+		public Object getValue() {
+			return key == null ? null : toIDataValue(map.get(key));
+		}
+
+		@Override
+		public void setValue(Object value) {
+			if(isValid())
+				map.put(key, IDataMapView.toMapValue(value));
+		}
+
+		@Override
+		public boolean delete() {
+			if(!isValid())
+				return false;
+			//position cursor on the following entry
+			String[] keys = keys();
+			String next = pos >= 0 && pos + 1 < keys.length ? keys[pos + 1] : null;
+			map.remove(key);
+			key = next;
+			this.keys = null;
+			return true;
+		}
+
+		@Override
+		public void insertBefore(String key, Object value) {
+			put(key, value);
+		}
+
+		@Override
+		public void insertAfter(String key, Object value) {
+			put(key, value);
+		}
+
+		@Override
+		public IData insertDataBefore(String key) {
+			IData data = IDataFactory.create();
+			insertBefore(key, data);
+			return data;
+		}
+
+		@Override
+		public IData insertDataAfter(String key) {
+			IData data = IDataFactory.create();
+			insertAfter(key, data);
+			return data;
+		}
+
+		@Override
+		public boolean next() {
+			keys();
+			return moveTo(pos + 1);
+		}
+
+		@Override
+		public boolean next(String key) {
+			keys();
+			for(int i = pos + 1; i < keys.length; i++)
+				if(keys[i].equals(key))
+					return moveTo(i);
+			return false;
+		}
+
+		@Override
+		public boolean previous() {
+			keys();
+			return moveTo(pos - 1);
+		}
+
+		@Override
+		public boolean previous(String key) {
+			keys();
+			for(int i = pos - 1; i >= 0; i--)
+				if(keys[i].equals(key))
+					return moveTo(i);
+			return false;
+		}
+
+		@Override
+		public boolean first() {
+			return moveTo(0);
+		}
+
+		@Override
+		public boolean first(String key) {
+			//keys are unique, no need for positional access
+			if(key == null || !map.containsKey(key))
+				return false;
+			this.key = key;
+			this.keys = null;
+			return true;
+		}
+
+		@Override
+		public boolean last() {
+			return moveTo(keys().length - 1);
+		}
+
+		@Override
+		public boolean last(String key) {
+			return first(key);
+		}
+
+		@Override
+		public boolean hasMoreData() {
+			return pos + 1 < keys().length;
+		}
+
+		@Override
+		public void destroy() {
+		}
+
+		@Override
+		public IDataCursor getCursorClone() {
+			return new Cursor(key, pos, keys);
+		}
+
+	}
+
+}
@@ -0,0 +1,391 @@
+package farsight.utils.idata;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.TreeMap;
+
+import com.wm.data.IData;
+
+import farsight.utils.idata.PipelineSerializer.LimitTarget;
+
+/**
+ * Append-only archive of pipelines for replay, with lookup by id and timestamp.
+ *
+ * Pipelines are appended as framed pipelines (see {@link PipelineSerializer}) to segment files in the format of
+ * the {@link PipelineSnapshotWriter}. An index file records id, timestamp, segment, offset and length of every
+ * record and is loaded into memory on open, so a lookup takes O(1) and reading streams the record from the
+ * memory-mapped segment (coders that need the record as array, like the binary one, copy it once). Ids are unique
+ * keys, appending an existing id replaces it for {@link #read(String)}. Incompletely written records at the end of
+ * the archive are dropped on open, records of missing segments are skipped.
+ *
+ * An archive directory must only be opened by one instance at a time. Reads may be concurrent to appends.
+ */
+public class PipelineArchive implements Closeable {
+
+	private static final byte[] INDEX_MAGIC = { 'F', 'P', 'S', 'I' };
+	private static final String INDEX_FILE = "archive.idx";
+	private static final String SEGMENT_PREFIX = "archive-";
+	private static final long DEFAULT_MAX_SEGMENT_SIZE = 256L * 1024 * 1024;
+	//segment, offset, length, timestamp and id length
+	private static final int INDEX_ENTRY_SIZE = 26;
+
+	public static final class Entry {
+		private final String id;
+		private final long timestamp;
+		private final int segment;
+		private final long offset;
+		private final int length;
+
+		private Entry(String id, long timestamp, int segment, long offset, int length) {
+			this.id = id;
+			this.timestamp = timestamp;
+			this.segment = segment;
+			this.offset = offset;
+			this.length = length;
+		}
+
+		public String getId() {
+			return id;
+		}
+
+		public long getTimestamp() {
+			return timestamp;
+		}
+
+		public int getSegment() {
+			return segment;
+		}
+
+		/**
+		 * Offset of the framed pipeline within the segment.
+		 */
+		public long getOffset() {
+			return offset;
+		}
+
+		public int getLength() {
+			return length;
+		}
+
+		@Override
+		public String toString() {
+			return "Entry [id=" + id + ", timestamp=" + timestamp + ", segment=" + segment + ", offset=" + offset
+					+ ", length=" + length + "]";
+		}
+	}
+
+	private final Path directory;
+	private final PipelineFormat format;
+	private final PipelineCompression compression;
+	private final long maxSegmentSize;
+
+	private final ArrayList<Entry> entries = new ArrayList<>();
+	private final HashMap<String, Entry> byId = new HashMap<>();
+	private final TreeMap<Long, List<Entry>> byTimestamp = new TreeMap<>();
+	private final ArrayList<MappedByteBuffer> mapped = new ArrayList<>();
+
+	private final FileChannel index;
+	private FileChannel segment = null;
+	private int segmentNumber = 0;
+	private long segmentSize = 0;
+	private boolean closed = false;
+
+	private PipelineArchive(Path directory, PipelineFormat format, PipelineCompression compression, long maxSegmentSize) throws IOException {
+		this.directory = directory;
+		this.format = format;
+		this.compression = compression;
+		this.maxSegmentSize = maxSegmentSize;
+
+		Files.createDirectories(directory);
+		index = FileChannel.open(directory.resolve(INDEX_FILE), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try {
+			loadIndex();
+		} catch (IOException | RuntimeException e) {
+			close();
+			throw e;
+		}
+	}
+
+	public static PipelineArchive open(Path directory) throws IOException {
+		return open(directory, PipelineFormat.BINARY, PipelineCompression.NONE, DEFAULT_MAX_SEGMENT_SIZE);
+	}
+
+	/**
+	 * Opens (or creates) the archive in the given directory. Format and compression apply to appended pipelines,
+	 * existing records keep theirs. Segments are limited to <code>maxSegmentSize</code> bytes (at most 2 GB, so
+	 * they can be mapped as a whole).
+	 */
+	public static PipelineArchive open(Path directory, PipelineFormat format, PipelineCompression compression, long maxSegmentSize) throws IOException {
+		if(maxSegmentSize <= PipelineSnapshotWriter.SEGMENT_MAGIC.length || maxSegmentSize > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Invalid segment size: " + maxSegmentSize);
+		return new PipelineArchive(directory, format, compression, maxSegmentSize);
+	}
+
+	private Path segmentPath(int number) {
+		return directory.resolve(String.format("%s%06d%s", SEGMENT_PREFIX, number, PipelineSnapshotWriter.SEGMENT_SUFFIX));
+	}
+
+	// index
+
+	private void loadIndex() throws IOException {
+		long size = index.size();
+		if(size == 0) {
+			writeFully(index, ByteBuffer.wrap(INDEX_MAGIC));
+			//never overwrite segments without index
+			while(Files.exists(segmentPath(segmentNumber)))
+				segmentNumber++;
+			return;
+		}
+		long valid = INDEX_MAGIC.length;
+		ArrayList<Entry> loaded = new ArrayList<>();
+		ArrayList<Long> positions = new ArrayList<>();
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(directory.resolve(INDEX_FILE))))) {
+			byte[] magic = new byte[INDEX_MAGIC.length];
+			in.readFully(magic);
+			if(!Arrays.equals(magic, INDEX_MAGIC))
+				throw new IOException("Invalid archive index: " + directory.resolve(INDEX_FILE));
+			while(valid < size) {
+				int number = in.readInt();
+				long offset = in.readLong();
+				int length = in.readInt();
+				long timestamp = in.readLong();
+				byte[] id = new byte[in.readUnsignedShort()];
+				in.readFully(id);
+				loaded.add(new Entry(new String(id, StandardCharsets.UTF_8), timestamp, number, offset, length));
+				positions.add(valid);
+				valid += INDEX_ENTRY_SIZE + id.length;
+			}
+		} catch (EOFException e) {
+			//incomplete entry at the end
+		}
+
+		HashMap<Integer, Long> segmentSizes = new HashMap<>();
+		int count = loaded.size();
+		int lastSegment = count == 0 ? 0 : loaded.get(count - 1).segment;
+		//records at the end of the last segment that were not completely written
+		long lastSize = segmentSize(lastSegment, segmentSizes);
+		while(count > 0 && lastSize >= 0 && loaded.get(count - 1).segment == lastSegment && end(loaded.get(count - 1)) > lastSize)
+			valid = positions.get(--count);
+		//drop the torn tail, so appends stay aligned
+		index.truncate(valid);
+		index.position(valid);
+
+		boolean lastSegmentIncomplete = false;
+		for(int i = 0; i < count; i++) {
+			Entry entry = loaded.get(i);
+			//records of missing or damaged segments are skipped, but kept in the index
+			if(end(entry) > segmentSize(entry.segment, segmentSizes)) {
+				lastSegmentIncomplete |= entry.segment == lastSegment;
+				continue;
+			}
+			add(entry);
+		}
+		if(count > 0)
+			segmentNumber = lastSegmentIncomplete ? lastSegment + 1 : lastSegment;
+	}
+
+	private static long end(Entry entry) {
+		return entry.offset + entry.length;
+	}
+
+	//returns -1 for missing segments
+	private long segmentSize(int number, HashMap<Integer, Long> sizes) throws IOException {
+		Long size = sizes.get(number);
+		if(size == null) {
+			try {
+				size = Files.size(segmentPath(number));
+			} catch (NoSuchFileException e) {
+				size = -1L;
+			}
+			sizes.put(number, size);
+		}
+		return size;
+	}
+
+	private void add(Entry entry) {
+		entries.add(entry);
+		byId.put(entry.id, entry);
+		byTimestamp.computeIfAbsent(entry.timestamp, t -> new ArrayList<>(1)).add(entry);
+	}
+
+	// append
+
+	private void openSegment() throws IOException {
+		Path path = segmentPath(segmentNumber);
+		segment = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		segmentSize = segment.size();
+		if(segmentSize == 0) {
+			writeFully(segment, ByteBuffer.wrap(PipelineSnapshotWriter.SEGMENT_MAGIC));
+			segmentSize = PipelineSnapshotWriter.SEGMENT_MAGIC.length;
+		} else {
+			//drop data behind the last indexed record
+			long end = PipelineSnapshotWriter.SEGMENT_MAGIC.length;
+			for(int i = entries.size() - 1; i >= 0; i--) {
+				Entry last = entries.get(i);
+				if(last.segment == segmentNumber) {
+					end = last.offset + last.length;
+					break;
+				}
+			}
+			segment.truncate(end);
+			segmentSize = end;
+		}
+		segment.position(segmentSize);
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer... buffers) throws IOException {
+		long remaining = 0;
+		for(ByteBuffer buffer: buffers)
+			remaining += buffer.remaining();
+		while(remaining > 0)
+			remaining -= channel.write(buffers);
+	}
+
+	/**
+	 * Appends the pipeline with the given id and timestamp.
+	 */
+	public synchronized Entry append(String id, long timestamp, IData pipeline) throws IOException {
+		if(closed)
+			throw new IOException("Archive is closed");
+		byte[] idBytes = id.getBytes(StandardCharsets.UTF_8);
+		if(idBytes.length > 0xFFFF)
+			throw new IllegalArgumentException("Id too long: " + id);
+
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		PipelineSerializer.serializePipeline(pipeline, format, compression, PipelineCompression.DEFAULT_LEVEL, os, 0, LimitTarget.COMPRESSED);
+		byte[] data = os.toByteArray();
+		long recordSize = PipelineSnapshotWriter.RECORD_HEADER_SIZE + data.length;
+
+		if(segment == null)
+			openSegment();
+		if(segmentSize > PipelineSnapshotWriter.SEGMENT_MAGIC.length && segmentSize + recordSize > maxSegmentSize) {
+			segment.close();
+			segmentNumber++;
+			openSegment();
+		}
+		if(segmentSize + recordSize > Integer.MAX_VALUE)
+			throw new IOException("Pipeline too large for archive: " + data.length + " bytes");
+
+		ByteBuffer header = ByteBuffer.allocate(PipelineSnapshotWriter.RECORD_HEADER_SIZE);
+		header.putInt(data.length).putLong(timestamp).flip();
+		writeFully(segment, header, ByteBuffer.wrap(data));
+		Entry entry = new Entry(id, timestamp, segmentNumber, segmentSize + PipelineSnapshotWriter.RECORD_HEADER_SIZE, data.length);
+		segmentSize += recordSize;
+
+		ByteArrayOutputStream indexEntry = new ByteArrayOutputStream(INDEX_ENTRY_SIZE + idBytes.length);
+		DataOutputStream out = new DataOutputStream(indexEntry);
+		out.writeInt(entry.segment);
+		out.writeLong(entry.offset);
+		out.writeInt(entry.length);
+		out.writeLong(entry.timestamp);
+		out.writeShort(idBytes.length);
+		out.write(idBytes);
+		writeFully(index, ByteBuffer.wrap(indexEntry.toByteArray()));
+
+		add(entry);
+		return entry;
+	}
+
+	// read
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	public synchronized boolean contains(String id) {
+		return byId.containsKey(id);
+	}
+
+	public synchronized Entry getEntry(String id) {
+		return byId.get(id);
+	}
+
+	/**
+	 * All entries in append order.
+	 */
+	public synchronized List<Entry> getEntries() {
+		return new ArrayList<>(entries);
+	}
+
+	/**
+	 * Entries with a timestamp within [from, to), ordered by timestamp.
+	 */
+	public synchronized List<Entry> getEntries(long from, long to) {
+		ArrayList<Entry> result = new ArrayList<>();
+		for(List<Entry> list: byTimestamp.subMap(from, true, to, false).values())
+			result.addAll(list);
+		return result;
+	}
+
+	/**
+	 * Reads the pipeline with the given id, or returns null if there is none.
+	 */
+	public IData read(String id) throws IOException {
+		Entry entry = getEntry(id);
+		return entry == null ? null : read(entry);
+	}
+
+	public IData read(Entry entry) throws IOException {
+		return PipelineSerializer.deserializeFramedPipeline(view(entry));
+	}
+
+	/**
+	 * Returns a read-only view of the framed pipeline in the mapped segment.
+	 */
+	public ByteBuffer view(Entry entry) throws IOException {
+		ByteBuffer buffer = mapped(entry.segment, entry.offset + entry.length).duplicate();
+		buffer.limit((int) (entry.offset + entry.length)).position((int) entry.offset);
+		return buffer.slice();
+	}
+
+	private synchronized MappedByteBuffer mapped(int number, long end) throws IOException {
+		if(closed)
+			throw new IOException("Archive is closed");
+		while(mapped.size() <= number)
+			mapped.add(null);
+		MappedByteBuffer buffer = mapped.get(number);
+		//segments grow while appending, map again if necessary
+		if(buffer == null || buffer.capacity() < end) {
+			try (FileChannel channel = FileChannel.open(segmentPath(number), StandardOpenOption.READ)) {
+				buffer = channel.map(MapMode.READ_ONLY, 0, channel.size());
+			}
+			if(buffer.capacity() < end)
+				throw new IOException("Archive segment " + number + " is truncated");
+			mapped.set(number, buffer);
+		}
+		return buffer;
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		if(closed)
+			return;
+		closed = true;
+		mapped.clear();
+		try {
+			if(segment != null)
+				segment.close();
+		} finally {
+			index.close();
+		}
+	}
+
+}
@@ -0,0 +1,270 @@
+package farsight.utils.idata;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import com.wm.data.IData;
+import com.wm.util.coder.IDataCoder;
+
+import farsight.utils.idata.PipelineSerializer.LimitTarget;
+import farsight.utils.streams.ReusableByteArrayOutputStream;
+
+/**
+ * Serializes many pipelines in parallel into a single output, e.g. for exports.
+ *
+ * The pipelines are encoded as framed pipelines (see
+ * {@link PipelineSerializer#deserializeFramedPipeline(java.io.InputStream)}) by the threads of a fork-join pool,
+ * each using its own coder and buffer, while the calling thread writes the results in input order. The number of
+ * pipelines being encoded or waiting to be written is bounded, so streams of any length are processed with
+ * bounded memory.
+ *
+ * The output consists of a magic number followed by records, each consisting of the payload length (int32) and
+ * the framed pipeline. It can be read with {@link #read(InputStream)}. Instances are immutable and may be shared.
+ */
+public class PipelineBatchSerializer {
+
+	static final byte[] BATCH_MAGIC = { 'F', 'P', 'S', 'B' };
+	static final int RECORD_HEADER_SIZE = 4;
+
+	private static final int OUTPUT_BUFFER_SIZE = 64 * 1024;
+	private static final int INITIAL_BUFFER_SIZE = 4096;
+	//worker buffers larger than this are not kept
+	private static final int MAX_RETAINED_SIZE = 1024 * 1024;
+
+	public static class Builder {
+
+		private PipelineFormat format = PipelineFormat.BINARY;
+		private PipelineCompression compression = PipelineCompression.NONE;
+		private int compressionLevel = PipelineCompression.DEFAULT_LEVEL;
+		private ForkJoinPool pool = ForkJoinPool.commonPool();
+		private int maxInFlight = 0;
+
+		private Builder() {
+		}
+
+		public Builder format(PipelineFormat format) {
+			this.format = format;
+			return this;
+		}
+
+		public Builder compression(PipelineCompression compression, int level) {
+			this.compression = compression;
+			this.compressionLevel = level;
+			return this;
+		}
+
+		/**
+		 * Pool encoding the pipelines, the common pool by default.
+		 */
+		public Builder pool(ForkJoinPool pool) {
+			this.pool = pool;
+			return this;
+		}
+
+		/**
+		 * Maximum number of pipelines being encoded or waiting to be written, by default four times the
+		 * parallelism of the pool.
+		 */
+		public Builder maxInFlight(int maxInFlight) {
+			this.maxInFlight = maxInFlight;
+			return this;
+		}
+
+		public PipelineBatchSerializer build() {
+			if(maxInFlight < 0)
+				throw new IllegalArgumentException("Maximum in-flight pipelines must not be negative");
+			return new PipelineBatchSerializer(this);
+		}
+	}
+
+	//must not reference the serializer, the thread local value would keep its own key alive otherwise
+	private static class Worker {
+		private final IDataCoder coder;
+		private final ReusableByteArrayOutputStream buffer = new ReusableByteArrayOutputStream(INITIAL_BUFFER_SIZE);
+
+		private Worker(IDataCoder coder) {
+			this.coder = coder;
+		}
+	}
+
+	private final PipelineFormat format;
+	private final PipelineCompression compression;
+	private final int compressionLevel;
+	private final ForkJoinPool pool;
+	private final int maxInFlight;
+	private final ThreadLocal<Worker> workers;
+
+	private PipelineBatchSerializer(Builder builder) {
+		this.format = builder.format;
+		this.compression = builder.compression;
+		this.compressionLevel = builder.compressionLevel;
+		this.pool = builder.pool;
+		this.maxInFlight = builder.maxInFlight > 0 ? builder.maxInFlight : 4 * builder.pool.getParallelism();
+		PipelineFormat format = builder.format;
+		this.workers = ThreadLocal.withInitial(() -> new Worker(format.createCoder()));
+	}
+
+	public static Builder builder() {
+		return new Builder();
+	}
+
+	/**
+	 * Writes the pipelines in order, returns the number of bytes written. The stream is flushed, but not closed.
+	 */
+	public long write(IData[] pipelines, OutputStream out) throws IOException {
+		return write(Arrays.asList(pipelines).iterator(), out);
+	}
+
+	/**
+	 * Like {@link #write(IData[], OutputStream)}. The stream is consumed sequentially by the calling thread.
+	 */
+	public long write(Stream<IData> pipelines, OutputStream out) throws IOException {
+		return write(pipelines.iterator(), out);
+	}
+
+	private long write(Iterator<IData> pipelines, OutputStream out) throws IOException {
+		BufferedOutputStream os = new BufferedOutputStream(out, OUTPUT_BUFFER_SIZE);
+		ArrayDeque<CompletableFuture<byte[]>> inFlight = new ArrayDeque<>(maxInFlight);
+		long index = 0, written = 0;
+		try {
+			os.write(BATCH_MAGIC);
+			written += BATCH_MAGIC.length;
+			while(pipelines.hasNext()) {
+				IData pipeline = pipelines.next();
+				if(pipeline == null)
+					throw new IllegalArgumentException("Pipeline " + (index + inFlight.size()) + " is null");
+				if(inFlight.size() == maxInFlight) {
+					written += writeRecord(inFlight.poll(), index++, os);
+				}
+				inFlight.add(CompletableFuture.supplyAsync(() -> encode(pipeline), pool));
+			}
+			while(!inFlight.isEmpty())
+				written += writeRecord(inFlight.poll(), index++, os);
+			os.flush();
+			return written;
+		} finally {
+			//after a failure
+			for(CompletableFuture<byte[]> future: inFlight)
+				future.cancel(false);
+		}
+	}
+
+	private static int writeRecord(CompletableFuture<byte[]> future, long index, OutputStream out) throws IOException {
+		byte[] record;
+		try {
+			record = future.join();
+		} catch (CompletionException | CancellationException e) {
+			Throwable cause = e.getCause() instanceof UncheckedIOException ? e.getCause().getCause() : e.getCause();
+			throw new IOException("Cannot serialize pipeline " + index, cause != null ? cause : e);
+		}
+		out.write(record);
+		return record.length;
+	}
+
+	//returns the complete record
+	private byte[] encode(IData pipeline) {
+		Worker worker = workers.get();
+		byte[] record;
+		try {
+			worker.buffer.write(new byte[RECORD_HEADER_SIZE]);
+			PipelineSerializer.serializeFramed(pipeline, format, worker.coder, compression, compressionLevel,
+					worker.buffer, 0, LimitTarget.COMPRESSED);
+			record = worker.buffer.toByteArray();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		} finally {
+			//large buffers are not kept on idle pool threads
+			worker.buffer.recycle(MAX_RETAINED_SIZE, INITIAL_BUFFER_SIZE);
+		}
+		int length = record.length - RECORD_HEADER_SIZE;
+		record[0] = (byte) (length >>> 24);
+		record[1] = (byte) (length >>> 16);
+		record[2] = (byte) (length >>> 8);
+		record[3] = (byte) length;
+		return record;
+	}
+
+	/**
+	 * Returns the pipelines written by {@link #write(IData[], OutputStream)} in order. Closing the stream closes
+	 * the input. Errors while reading are reported as {@link UncheckedIOException}.
+	 */
+	public static Stream<IData> read(InputStream in) throws IOException {
+		DataInputStream is = new DataInputStream(in);
+		byte[] magic = new byte[BATCH_MAGIC.length];
+		try {
+			is.readFully(magic);
+		} catch (EOFException e) {
+			magic[0] = 0;
+		}
+		if(!Arrays.equals(magic, BATCH_MAGIC))
+			throw new IOException("Invalid data: not a pipeline batch");
+
+		Iterator<IData> records = new Iterator<IData>() {
+			private IData next = null;
+			private boolean done = false;
+
+			@Override
+			public boolean hasNext() {
+				if(next == null && !done) {
+					try {
+						next = readRecord(is);
+					} catch (IOException e) {
+						done = true;
+						throw new UncheckedIOException(e);
+					}
+					done = next == null;
+				}
+				return next != null;
+			}
+
+			@Override
+			public IData next() {
+				if(!hasNext())
+					throw new NoSuchElementException();
+				IData result = next;
+				next = null;
+				return result;
+			}
+		};
+		return StreamSupport.stream(Spliterators.spliteratorUnknownSize(records, Spliterator.ORDERED | Spliterator.NONNULL), false)
+				.onClose(() -> {
+					try {
+						in.close();
+					} catch (IOException e) {
+						throw new UncheckedIOException(e);
+					}
+				});
+	}
+
+	//returns null at the end of the batch
+	private static IData readRecord(DataInputStream in) throws IOException {
+		int first = in.read();
+		if(first == -1)
+			return null;
+		int length = first << 24 | in.readUnsignedByte() << 16 | in.readUnsignedByte() << 8 | in.readUnsignedByte();
+		if(length < 0)
+			throw new IOException("Invalid record length: " + length);
+		IData pipeline = PipelineSerializer.deserializeFramedPipeline(BinaryInput.readFully(in, length));
+		if(pipeline == null)
+			throw new IOException("Invalid data: empty pipeline");
+		return pipeline;
+	}
+
+}
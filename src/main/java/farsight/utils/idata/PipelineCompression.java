@@ -0,0 +1,141 @@
+package farsight.utils.idata;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Compressions supported by {@link PipelineSerializer}. The id is recorded in frame headers.
+ *
+ * The streams returned by {@link #compress(OutputStream, int)} and {@link #decompress(InputStream)} release their
+ * native resources when closed, but never close the underlying stream.
+ */
+public enum PipelineCompression {
+
+	NONE(0),
+	DEFLATE(1),
+	GZIP(2);
+
+	public static final int DEFAULT_LEVEL = Deflater.DEFAULT_COMPRESSION;
+
+	private static final int BUFFER_SIZE = 8192;
+
+	private final int id;
+
+	private PipelineCompression(int id) {
+		this.id = id;
+	}
+
+	public int getId() {
+		return id;
+	}
+
+	public static PipelineCompression forId(int id) {
+		for(PipelineCompression compression: values()) {
+			if(compression.id == id)
+				return compression;
+		}
+		throw new IllegalArgumentException("Unknown pipeline compression: " + id);
+	}
+
+	/**
+	 * Returns a stream compressing into <code>out</code> with the given level (0-9, or {@link #DEFAULT_LEVEL}).
+	 * Closing the stream finishes the compressed data.
+	 */
+	public OutputStream compress(OutputStream out, int level) throws IOException {
+		OutputStream target = new OutputShield(out);
+		switch(this) {
+		case DEFLATE:
+			return new DeflaterOutputStream(target, new Deflater(level), BUFFER_SIZE) {
+				@Override
+				public void close() throws IOException {
+					try {
+						super.close();
+					} finally {
+						def.end();
+					}
+				}
+			};
+		case GZIP:
+			return new GZIPOutputStream(target, BUFFER_SIZE) {
+				{
+					def.setLevel(level);
+				}
+
+				@Override
+				public void close() throws IOException {
+					try {
+						super.close();
+					} finally {
+						def.end();
+					}
+				}
+			};
+		default:
+			return target;
+		}
+	}
+
+	/**
+	 * Returns a stream decompressing from <code>in</code>. The stream may read ahead beyond the end of the
+	 * compressed data.
+	 */
+	public InputStream decompress(InputStream in) throws IOException {
+		InputStream source = new InputShield(in);
+		switch(this) {
+		case DEFLATE:
+			return new InflaterInputStream(source, new Inflater(), BUFFER_SIZE) {
+				@Override
+				public void close() throws IOException {
+					try {
+						super.close();
+					} finally {
+						inf.end();
+					}
+				}
+			};
+		case GZIP:
+			return new GZIPInputStream(source, BUFFER_SIZE);
+		default:
+			return source;
+		}
+	}
+
+	private static class OutputShield extends FilterOutputStream {
+
+		private OutputShield(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(byte[] bytes, int offset, int length) throws IOException {
+			out.write(bytes, offset, length);
+		}
+
+		@Override
+		public void close() throws IOException {
+			out.flush();
+		}
+	}
+
+	private static class InputShield extends FilterInputStream {
+
+		private InputShield(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public void close() {
+			//keep the underlying stream open
+		}
+	}
+
+}
@@ -0,0 +1,51 @@
+package farsight.utils.idata;
+
+import com.wm.util.coder.IDataCoder;
+import com.wm.util.coder.IDataJSONCoder;
+import com.wm.util.coder.IDataXMLCoder;
+
+/**
+ * Encodings supported by {@link PipelineSerializer}. The id is recorded in frame headers.
+ */
+public enum PipelineFormat {
+
+	XML(1) {
+		@Override
+		public IDataCoder createCoder() {
+			return new IDataXMLCoder();
+		}
+	},
+	JSON(2) {
+		@Override
+		public IDataCoder createCoder() {
+			return new IDataJSONCoder();
+		}
+	},
+	BINARY(3) {
+		@Override
+		public IDataCoder createCoder() {
+			return new IDataBinaryCoder();
+		}
+	};
+
+	private final int id;
+
+	private PipelineFormat(int id) {
+		this.id = id;
+	}
+
+	public int getId() {
+		return id;
+	}
+
+	public abstract IDataCoder createCoder();
+
+	public static PipelineFormat forId(int id) {
+		for(PipelineFormat format: values()) {
+			if(format.id == id)
+				return format;
+		}
+		throw new IllegalArgumentException("Unknown pipeline format: " + id);
+	}
+
+}
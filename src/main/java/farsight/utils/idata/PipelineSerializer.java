@@ -1,20 +1,258 @@
 package farsight.utils.idata;
 
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.function.Supplier;
 
 import com.wm.data.IData;
 import com.wm.util.coder.IDataCoder;
-import com.wm.util.coder.IDataJSONCoder;
-import com.wm.util.coder.IDataXMLCoder;
 
+import farsight.utils.streams.ByteBufferInputStream;
 import farsight.utils.streams.LimitedByteArrayOutputStream;
+import farsight.utils.streams.LimitedOutputStream;
+import farsight.utils.streams.ReusableByteArrayOutputStream;
 
 public class PipelineSerializer {
 
+	private static final int CHANNEL_BUFFER_SIZE = 8192;
+
+	private static final byte[] FRAME_MAGIC = { 'F', 'P', 'S' };
+	private static final int FRAME_VERSION = 1;
+	private static final int FRAME_HEADER_SIZE = 7;
+
+	/**
+	 * Whether a limit applies to the compressed or the uncompressed size of a framed pipeline.
+	 */
+	public static enum LimitTarget { COMPRESSED, UNCOMPRESSED }
+
+	private static final int MIN_BUFFER_SIZE = 1024;
+	//buffers larger than this factor of the typical size are not kept
+	private static final int MAX_RETAINED_FACTOR = 4;
+
+	private static final PipelineSerializer[] SHARED = new PipelineSerializer[PipelineFormat.values().length];
+
+	static {
+		for(PipelineFormat format: PipelineFormat.values())
+			SHARED[format.ordinal()] = new PipelineSerializer(format);
+	}
+
+	//must not reference the serializer, the thread local value would keep its own key alive otherwise
+	private static class Worker {
+		private final IDataCoder coder;
+		private final ReusableByteArrayOutputStream buffer;
+		private boolean busy = false;
+
+		private Worker(IDataCoder coder, int initialSize) {
+			this.coder = coder;
+			this.buffer = new ReusableByteArrayOutputStream(initialSize);
+		}
+	}
+
+	private final PipelineFormat format;
+	private final DocumentShape shape;
+	private final Supplier<IDataCoder> coders;
+	private final ThreadLocal<Worker> workers = ThreadLocal.withInitial(() -> newWorker());
+	//learned typical encoded size, updated without synchronization
+	private volatile int typicalSize = MIN_BUFFER_SIZE;
+
+	public PipelineSerializer() {
+		this(PipelineFormat.XML);
+	}
+
+	/**
+	 * Creates a serializer for the given format. Each thread using the instance gets its own coder and output
+	 * buffer, which are reused by later calls of that thread. The buffer is sized by the typical size of the
+	 * encoded pipelines, unusually large buffers are released again.
+	 */
+	public PipelineSerializer(PipelineFormat format) {
+		this(format, null, format::createCoder);
+	}
+
+	/**
+	 * Creates a serializer for documents of the given shape, see {@link ShapedIDataCoder}. The encoded pipelines
+	 * are no {@link PipelineFormat} and can only be decoded by a serializer or coder for the same shape.
+	 */
+	public PipelineSerializer(DocumentShape shape) {
+		this(null, shape, singleton(new ShapedIDataCoder(shape)));
+	}
+
+	private PipelineSerializer(PipelineFormat format, DocumentShape shape, Supplier<IDataCoder> coders) {
+		this.format = format;
+		this.shape = shape;
+		this.coders = coders;
+	}
+
+	private static Supplier<IDataCoder> singleton(IDataCoder coder) {
+		return () -> coder;
+	}
+
+	/**
+	 * Returns a shared instance for the given format.
+	 */
+	public static PipelineSerializer forFormat(PipelineFormat format) {
+		return SHARED[format.ordinal()];
+	}
+
+	/**
+	 * Returns the format of the encoded pipelines. Not supported by serializers for a {@link DocumentShape}, whose
+	 * output no format can decode.
+	 */
+	public PipelineFormat getFormat() {
+		if(format == null)
+			throw new IllegalStateException("Serializer for " + shape + " has no pipeline format");
+		return format;
+	}
+
+	/**
+	 * Returns the shape of a serializer created by {@link #PipelineSerializer(DocumentShape)}, otherwise null.
+	 */
+	public DocumentShape getShape() {
+		return shape;
+	}
+
+	private int initialSize() {
+		int size = typicalSize;
+		return size + (size >> 2);
+	}
+
+	private Worker newWorker() {
+		return new Worker(coders.get(), initialSize());
+	}
+
+	private Worker acquire() {
+		Worker worker = workers.get();
+		if(worker.busy) {
+			//reentrant call, e.g. from an IDataCodable
+			worker = newWorker();
+		}
+		worker.busy = true;
+		return worker;
+	}
+
+	//unusually large buffers are released right away, not only by the next call of the thread
+	private void release(Worker worker) {
+		worker.buffer.recycle(Math.max(MIN_BUFFER_SIZE, typicalSize * MAX_RETAINED_FACTOR), initialSize());
+		worker.busy = false;
+	}
+
+	private boolean encode(Worker worker, IData pipeline, int limit) throws IOException {
+		OutputStream os = limit > 0 ? new LimitedOutputStream(worker.buffer, limit) : worker.buffer;
+		try {
+			worker.coder.encode(os, pipeline);
+		} catch (RuntimeException | IOException e) {
+			if(os instanceof LimitedOutputStream && ((LimitedOutputStream) os).isLimitExceeded())
+				return false;
+			throw e;
+		}
+		int size = typicalSize;
+		typicalSize = Math.max(MIN_BUFFER_SIZE, size + (worker.buffer.size() - size) / 8);
+		return true;
+	}
+
+	public byte[] serialize(IData pipeline) throws IOException {
+		return serialize(pipeline, 0);
+	}
+
+	/**
+	 * Returns the encoded pipeline, or null if it exceeds the limit (0 for unlimited).
+	 */
+	public byte[] serialize(IData pipeline, int limit) throws IOException {
+		Worker worker = acquire();
+		try {
+			return encode(worker, pipeline, limit) ? worker.buffer.toByteArray() : null;
+		} finally {
+			release(worker);
+		}
+	}
+
+	public ByteBuffer serializeToView(IData pipeline) throws IOException {
+		return serializeToView(pipeline, 0);
+	}
+
+	/**
+	 * Like {@link #serialize(IData, int)}, but returns a read-only view of the reused buffer instead of a copy.
+	 * The view is only valid until the next call of this instance on the same thread.
+	 */
+	public ByteBuffer serializeToView(IData pipeline, int limit) throws IOException {
+		Worker worker = acquire();
+		try {
+			return encode(worker, pipeline, limit) ? worker.buffer.toByteBuffer() : null;
+		} finally {
+			release(worker);
+		}
+	}
+
+	/**
+	 * Streams the encoded pipeline, see {@link #serializePipeline(IData, IDataCoder, OutputStream, long)}.
+	 */
+	public SerializationResult serialize(IData pipeline, OutputStream out, long limit) throws IOException {
+		Worker worker = acquire();
+		try {
+			return serializePipeline(pipeline, worker.coder, out, limit);
+		} finally {
+			release(worker);
+		}
+	}
+
+	public IData deserialize(byte[] bytes) throws IOException {
+		Worker worker = acquire();
+		try {
+			return worker.coder.decodeFromBytes(bytes);
+		} finally {
+			release(worker);
+		}
+	}
+
+	public IData deserialize(InputStream in) throws IOException {
+		Worker worker = acquire();
+		try {
+			return worker.coder.decode(in);
+		} finally {
+			release(worker);
+		}
+	}
+
+	public IData deserialize(ByteBuffer buffer) throws IOException {
+		if(buffer.hasArray())
+			return deserialize(new ByteArrayInputStream(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining()));
+		return deserialize(new ByteBufferInputStream(buffer));
+	}
+
+	private byte[] serializeQuietly(IData pipeline, int limit) {
+		try {
+			return serialize(pipeline, limit);
+		} catch (RuntimeException | IOException e) {
+			return null;
+		}
+	}
+
+	private IData deserializeQuietly(byte[] bytes) {
+		try {
+			return deserialize(bytes);
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	private IData deserializeQuietly(InputStream in) {
+		try {
+			return deserialize(in);
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	// static API
+
 	public static byte[] serializePipelineXML(IData pipeline, int limit) {
-		return serializePipeline(pipeline, new IDataXMLCoder(), limit);
+		return forFormat(PipelineFormat.XML).serializeQuietly(pipeline, limit);
 	}
 
 	public static byte[] serializePipelineXML(IData pipeline) {
@@ -22,13 +260,21 @@ public class PipelineSerializer {
 	}
 
 	public static byte[] serializePipelineJson(IData pipeline, int limit) {
-		return serializePipeline(pipeline, new IDataJSONCoder(), limit);
+		return forFormat(PipelineFormat.JSON).serializeQuietly(pipeline, limit);
 	}
 
 	public static byte[] serializePipelineJson(IData pipeline) {
 		return serializePipelineJson(pipeline, 0);
 	}
 
+	public static byte[] serializePipelineBinary(IData pipeline, int limit) {
+		return forFormat(PipelineFormat.BINARY).serializeQuietly(pipeline, limit);
+	}
+
+	public static byte[] serializePipelineBinary(IData pipeline) {
+		return serializePipelineBinary(pipeline, 0);
+	}
+
 	private static ByteArrayOutputStream createByteArrayStream(int limit) {
 		return limit > 0 ? new LimitedByteArrayOutputStream(limit).setThrowException(true)
 				: new ByteArrayOutputStream();
@@ -47,20 +293,196 @@ public class PipelineSerializer {
 		}
 	}
 
+	/**
+	 * Returns the pipeline as XML or JSON of at most <code>limit</code> bytes, shortened where necessary, see
+	 * {@link TruncatingPipelineWriter}. Never returns null for large pipelines.
+	 */
+	public static byte[] serializePipelineTruncated(IData pipeline, PipelineFormat format, int limit) {
+		return TruncatingPipelineWriter.builder(format).limit(limit).build().toBytes(pipeline);
+	}
+
+	// streaming
+
+	public static SerializationResult serializePipelineXML(IData pipeline, OutputStream out, long limit) throws IOException {
+		return forFormat(PipelineFormat.XML).serialize(pipeline, out, limit);
+	}
+
+	public static SerializationResult serializePipelineJson(IData pipeline, OutputStream out, long limit) throws IOException {
+		return forFormat(PipelineFormat.JSON).serialize(pipeline, out, limit);
+	}
+
+	public static SerializationResult serializePipelineBinary(IData pipeline, OutputStream out, long limit) throws IOException {
+		return forFormat(PipelineFormat.BINARY).serialize(pipeline, out, limit);
+	}
+
+	public static SerializationResult serializePipeline(IData pipeline, IDataCoder coder, OutputStream out) throws IOException {
+		return serializePipeline(pipeline, coder, out, 0);
+	}
+
+	/**
+	 * Encodes the pipeline directly to the stream. The stream is flushed, but not closed. If more than
+	 * <code>limit</code> bytes (0 for unlimited) would be written, encoding stops after exactly <code>limit</code>
+	 * bytes and the result is marked as truncated. Other failures are propagated.
+	 */
+	public static SerializationResult serializePipeline(IData pipeline, IDataCoder coder, OutputStream out, long limit) throws IOException {
+		LimitedOutputStream os = new LimitedOutputStream(out, limit);
+		try {
+			coder.encode(os, pipeline);
+		} catch (RuntimeException | IOException e) {
+			//coders may wrap the exception of the stream
+			if(!os.isLimitExceeded())
+				throw e;
+		}
+		out.flush();
+		return new SerializationResult(os.getCount(), os.isLimitExceeded());
+	}
+
+	public static SerializationResult serializePipeline(IData pipeline, IDataCoder coder, WritableByteChannel channel) throws IOException {
+		return serializePipeline(pipeline, coder, channel, 0);
+	}
+
+	/**
+	 * Like {@link #serializePipeline(IData, IDataCoder, OutputStream, long)}, writing to a channel. The channel is
+	 * not closed.
+	 */
+	public static SerializationResult serializePipeline(IData pipeline, IDataCoder coder, WritableByteChannel channel, long limit) throws IOException {
+		return serializePipeline(pipeline, coder, new BufferedOutputStream(Channels.newOutputStream(channel), CHANNEL_BUFFER_SIZE), limit);
+	}
+
+	// framed
+
+	public static SerializationResult serializePipeline(IData pipeline, PipelineFormat format, PipelineCompression compression, OutputStream out) throws IOException {
+		return serializePipeline(pipeline, format, compression, PipelineCompression.DEFAULT_LEVEL, out, 0, LimitTarget.COMPRESSED);
+	}
+
+	/**
+	 * Writes a frame header (format, compression and level) followed by the pipeline, compressed while encoding.
+	 * The limit (0 for unlimited) applies to the written bytes including the header, or to the encoded data
+	 * before compression. If it is exceeded, the output is truncated, see
+	 * {@link #serializePipeline(IData, IDataCoder, OutputStream, long)}. The stream is flushed, but not closed.
+	 */
+	public static SerializationResult serializePipeline(IData pipeline, PipelineFormat format, PipelineCompression compression,
+			int level, OutputStream out, long limit, LimitTarget target) throws IOException {
+		return serializeFramed(pipeline, format, format.createCoder(), compression, level, out, limit, target);
+	}
+
+	//the coder must be one of the format
+	static SerializationResult serializeFramed(IData pipeline, PipelineFormat format, IDataCoder coder, PipelineCompression compression,
+			int level, OutputStream out, long limit, LimitTarget target) throws IOException {
+		LimitedOutputStream compressed = new LimitedOutputStream(out, target == LimitTarget.COMPRESSED ? limit : 0);
+		try {
+			compressed.write(new byte[] { FRAME_MAGIC[0], FRAME_MAGIC[1], FRAME_MAGIC[2], FRAME_VERSION,
+					(byte) format.getId(), (byte) compression.getId(), (byte) level });
+		} catch (LimitedOutputStream.LimitExceededException e) {
+			out.flush();
+			return new SerializationResult(compressed.getCount(), true);
+		}
+
+		OutputStream os = compression.compress(compressed, level);
+		LimitedOutputStream uncompressed = new LimitedOutputStream(os, target == LimitTarget.UNCOMPRESSED ? limit : 0);
+		try {
+			coder.encode(uncompressed, pipeline);
+		} catch (RuntimeException | IOException e) {
+			if(!compressed.isLimitExceeded() && !uncompressed.isLimitExceeded()) {
+				try {
+					os.close();
+				} catch (IOException ignored) {
+					//report the original failure
+				}
+				throw e;
+			}
+		}
+		try {
+			//finishes compression, also if the uncompressed data was truncated
+			os.close();
+		} catch (IOException e) {
+			if(!compressed.isLimitExceeded())
+				throw e;
+		}
+		out.flush();
+		return new SerializationResult(compressed.getCount(), compressed.isLimitExceeded() || uncompressed.isLimitExceeded());
+	}
+
+	/**
+	 * Returns the framed pipeline, or null if the limit is exceeded or encoding fails.
+	 */
+	public static byte[] serializePipeline(IData pipeline, PipelineFormat format, PipelineCompression compression,
+			int level, int limit, LimitTarget target) {
+		try {
+			ByteArrayOutputStream os = new ByteArrayOutputStream();
+			return serializePipeline(pipeline, format, compression, level, os, limit, target).isTruncated() ? null : os.toByteArray();
+		} catch (RuntimeException | IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Reads a pipeline written by {@link #serializePipeline(IData, PipelineFormat, PipelineCompression, int, OutputStream, long, LimitTarget)},
+	 * decompressing while decoding. The stream is not closed.
+	 */
+	public static IData deserializeFramedPipeline(InputStream in) throws IOException {
+		byte[] header = new byte[FRAME_HEADER_SIZE];
+		int offset = 0, read;
+		while(offset < header.length && (read = in.read(header, offset, header.length - offset)) != -1)
+			offset += read;
+		if(offset < header.length || header[0] != FRAME_MAGIC[0] || header[1] != FRAME_MAGIC[1] || header[2] != FRAME_MAGIC[2])
+			throw new IOException("Invalid data: not a framed pipeline");
+		if(header[3] != FRAME_VERSION)
+			throw new IOException("Unsupported frame version: " + header[3]);
+		PipelineFormat format;
+		PipelineCompression compression;
+		try {
+			format = PipelineFormat.forId(header[4]);
+			compression = PipelineCompression.forId(header[5]);
+		} catch (IllegalArgumentException e) {
+			throw new IOException("Invalid frame header", e);
+		}
+		try (InputStream is = compression.decompress(in)) {
+			return format.createCoder().decode(is);
+		}
+	}
+
+	public static IData deserializeFramedPipeline(byte[] bytes) throws IOException {
+		return deserializeFramedPipeline(new ByteArrayInputStream(bytes));
+	}
+
+	public static IData deserializeFramedPipeline(ByteBuffer buffer) throws IOException {
+		return deserializeFramedPipeline(new ByteBufferInputStream(buffer));
+	}
+
 	public static IData deserializePipelineXML(byte[] bytes) {
-		return deserializePipeline(bytes, new IDataXMLCoder());
+		return forFormat(PipelineFormat.XML).deserializeQuietly(bytes);
 	}
 
 	public static IData deserializePipelineXML(InputStream in) {
-		return deserializePipeline(in, new IDataXMLCoder());
+		return forFormat(PipelineFormat.XML).deserializeQuietly(in);
 	}
 
 	public static IData deserializePipelineJSON(byte[] bytes) {
-		return deserializePipeline(bytes, new IDataJSONCoder());
+		return forFormat(PipelineFormat.JSON).deserializeQuietly(bytes);
 	}
 
 	public static IData deserializePipelineJSON(InputStream in) {
-		return deserializePipeline(in, new IDataJSONCoder());
+		return forFormat(PipelineFormat.JSON).deserializeQuietly(in);
+	}
+
+	public static IData deserializePipelineBinary(byte[] bytes) {
+		return forFormat(PipelineFormat.BINARY).deserializeQuietly(bytes);
+	}
+
+	public static IData deserializePipelineBinary(InputStream in) {
+		return forFormat(PipelineFormat.BINARY).deserializeQuietly(in);
+	}
+
+	/**
+	 * Decodes a binary pipeline on demand, see {@link LazyIData}.
+	 */
+	public static IData deserializePipelineLazy(byte[] bytes) throws IOException {
+		return LazyIData.decode(bytes);
+	}
+
+	public static IData deserializePipelineLazy(ByteBuffer buffer) throws IOException {
+		return LazyIData.decode(buffer);
 	}
 
 	public static IData deserializePipeline(byte[] bytes, IDataCoder coder) {
@@ -0,0 +1,437 @@
+package farsight.utils.idata;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import com.wm.data.IData;
+
+import farsight.utils.idata.PipelineSerializer.LimitTarget;
+
+/**
+ * Asynchronous sink for pipeline snapshots, e.g. for auditing.
+ *
+ * Submitted pipelines are put on a bounded queue and serialized by a small pool of worker threads (as framed
+ * pipelines, see {@link PipelineSerializer#deserializeFramedPipeline(java.io.InputStream)}). A single writer
+ * thread appends them in batches to rolling segment files of limited size. If the queue is full, the
+ * {@link OverflowPolicy} decides whether the submitting thread waits or snapshots are dropped. Snapshots of
+ * different workers may be written out of submission order.
+ *
+ * <b>Note:</b> by default, submitted pipelines are deep-copied on the submitting thread, so that the caller may
+ * continue to modify them. The copy costs time proportional to the size of the pipeline on the request thread;
+ * callers handing over ownership of a pipeline should use {@link #submit(IData, boolean)} without copy (or
+ * {@link Builder#copy(boolean)}) to avoid it.
+ *
+ * Segment files are named <code>prefix-startTime-sequence.seg</code> and contain a magic number followed by
+ * records, each consisting of the payload length (int32), the submission time (int64, epoch millis) and the
+ * framed pipeline.
+ */
+public class PipelineSnapshotWriter implements Closeable {
+
+	public static enum OverflowPolicy {
+		/** the submitting thread waits for free space */
+		BLOCK,
+		/** the oldest queued snapshot is dropped */
+		DROP_OLDEST,
+		/** only every n-th snapshot waits for free space, all others are dropped */
+		SAMPLE
+	}
+
+	static final byte[] SEGMENT_MAGIC = { 'F', 'P', 'S', 'G' };
+	static final String SEGMENT_SUFFIX = ".seg";
+	static final int RECORD_HEADER_SIZE = 12;
+
+	private static final int MAX_BATCH_SIZE = 256;
+	private static final long POLL_MILLIS = 100;
+
+	public static class Builder {
+
+		private final Path directory;
+		private String prefix = "snapshot";
+		private PipelineFormat format = PipelineFormat.BINARY;
+		private PipelineCompression compression = PipelineCompression.NONE;
+		private int compressionLevel = PipelineCompression.DEFAULT_LEVEL;
+		private int queueCapacity = 1024;
+		private int workers = 2;
+		private long maxSegmentSize = 64L * 1024 * 1024;
+		private OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+		private int sampleRate = 10;
+		private boolean copy = true;
+
+		private Builder(Path directory) {
+			this.directory = directory;
+		}
+
+		public Builder prefix(String prefix) {
+			this.prefix = prefix;
+			return this;
+		}
+
+		public Builder format(PipelineFormat format) {
+			this.format = format;
+			return this;
+		}
+
+		public Builder compression(PipelineCompression compression, int level) {
+			this.compression = compression;
+			this.compressionLevel = level;
+			return this;
+		}
+
+		public Builder queueCapacity(int queueCapacity) {
+			this.queueCapacity = queueCapacity;
+			return this;
+		}
+
+		public Builder workers(int workers) {
+			this.workers = workers;
+			return this;
+		}
+
+		/**
+		 * Segments are rolled before they would exceed this size (a single larger record gets its own segment).
+		 */
+		public Builder maxSegmentSize(long maxSegmentSize) {
+			this.maxSegmentSize = maxSegmentSize;
+			return this;
+		}
+
+		public Builder overflowPolicy(OverflowPolicy overflowPolicy) {
+			this.overflowPolicy = overflowPolicy;
+			return this;
+		}
+
+		/**
+		 * Every n-th snapshot is kept on overflow with {@link OverflowPolicy#SAMPLE}.
+		 */
+		public Builder sampleRate(int sampleRate) {
+			this.sampleRate = sampleRate;
+			return this;
+		}
+
+		/**
+		 * Whether {@link PipelineSnapshotWriter#submit(IData)} copies pipelines on the submitting thread (default).
+		 * Without copy, submitted pipelines must not be modified afterwards.
+		 */
+		public Builder copy(boolean copy) {
+			this.copy = copy;
+			return this;
+		}
+
+		public PipelineSnapshotWriter build() {
+			if(queueCapacity < 1 || workers < 1 || sampleRate < 1 || maxSegmentSize < 1)
+				throw new IllegalArgumentException("Queue capacity, workers, sample rate and segment size must be positive");
+			return new PipelineSnapshotWriter(this);
+		}
+	}
+
+	private static class Snapshot {
+		private final IData pipeline;
+		private final long timestamp;
+
+		private Snapshot(IData pipeline, long timestamp) {
+			this.pipeline = pipeline;
+			this.timestamp = timestamp;
+		}
+	}
+
+	private static class Record {
+		private final long timestamp;
+		private final byte[] data;
+
+		private Record(long timestamp, byte[] data) {
+			this.timestamp = timestamp;
+			this.data = data;
+		}
+	}
+
+	private final Builder config;
+	private final BlockingQueue<Snapshot> queue;
+	private final BlockingQueue<Record> records;
+	private final Thread[] workers;
+	private final Thread writer;
+	private final long startTime = System.currentTimeMillis();
+
+	//submissions hold the read lock, so that close() cannot overtake a snapshot being queued
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+	private volatile boolean closed = false;
+	private volatile boolean serialized = false;
+
+	private final AtomicLong submitted = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private final AtomicLong written = new AtomicLong();
+	private final AtomicLong bytesWritten = new AtomicLong();
+	private final AtomicLong overflows = new AtomicLong();
+
+	//writer thread only
+	private FileChannel segment = null;
+	private long segmentSize = 0;
+	private int segmentCount = 0;
+
+	private PipelineSnapshotWriter(Builder config) {
+		this.config = config;
+		this.queue = new ArrayBlockingQueue<>(config.queueCapacity);
+		this.records = new ArrayBlockingQueue<>(config.queueCapacity);
+		this.workers = new Thread[config.workers];
+		for(int i = 0; i < workers.length; i++)
+			workers[i] = startThread(this::serializeLoop, "pipeline-snapshot-worker-" + i);
+		this.writer = startThread(this::writeLoop, "pipeline-snapshot-writer");
+	}
+
+	public static Builder builder(Path directory) {
+		return new Builder(directory);
+	}
+
+	private static Thread startThread(Runnable task, String name) {
+		Thread thread = new Thread(task, name);
+		thread.setDaemon(true);
+		thread.start();
+		return thread;
+	}
+
+	/**
+	 * Queues a snapshot of the pipeline, copied as configured by {@link Builder#copy(boolean)}. Returns false if
+	 * the snapshot was dropped.
+	 */
+	public boolean submit(IData pipeline) {
+		return submit(pipeline, config.copy);
+	}
+
+	/**
+	 * Queues a snapshot of the pipeline. With copy, the pipeline is deep-copied on the calling thread first;
+	 * without, ownership passes to the writer and the pipeline must not be modified afterwards. Returns false if
+	 * the snapshot was dropped.
+	 */
+	public boolean submit(IData pipeline, boolean copy) {
+		if(closed)
+			throw new IllegalStateException("Snapshot writer is closed");
+		Snapshot snapshot = new Snapshot(copy ? IDataCopier.DEFAULT.copy(pipeline) : pipeline, System.currentTimeMillis());
+		lock.readLock().lock();
+		try {
+			if(closed)
+				throw new IllegalStateException("Snapshot writer is closed");
+			submitted.incrementAndGet();
+			return enqueue(snapshot);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	private boolean enqueue(Snapshot snapshot) {
+		if(queue.offer(snapshot))
+			return true;
+
+		switch(config.overflowPolicy) {
+		case DROP_OLDEST:
+			while(!queue.offer(snapshot)) {
+				if(queue.poll() != null)
+					dropped.incrementAndGet();
+			}
+			return true;
+		case SAMPLE:
+			if(overflows.incrementAndGet() % config.sampleRate != 0) {
+				dropped.incrementAndGet();
+				return false;
+			}
+			//$FALL-THROUGH$
+		default:
+			try {
+				queue.put(snapshot);
+				return true;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				dropped.incrementAndGet();
+				return false;
+			}
+		}
+	}
+
+	public int getQueueDepth() {
+		return queue.size();
+	}
+
+	public long getSubmittedCount() {
+		return submitted.get();
+	}
+
+	public long getDroppedCount() {
+		return dropped.get();
+	}
+
+	/**
+	 * Snapshots that could not be serialized or written.
+	 */
+	public long getFailedCount() {
+		return failed.get();
+	}
+
+	public long getWrittenCount() {
+		return written.get();
+	}
+
+	public long getBytesWritten() {
+		return bytesWritten.get();
+	}
+
+	// workers
+
+	private void serializeLoop() {
+		int typicalSize = 1024;
+		while(true) {
+			Snapshot snapshot;
+			try {
+				snapshot = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				return;
+			}
+			if(snapshot == null) {
+				if(closed)
+					return;
+				continue;
+			}
+			try {
+				ByteArrayOutputStream os = new ByteArrayOutputStream(typicalSize);
+				PipelineSerializer.serializePipeline(snapshot.pipeline, config.format, config.compression,
+						config.compressionLevel, os, 0, LimitTarget.COMPRESSED);
+				typicalSize = Math.max(1024, os.size());
+				records.put(new Record(snapshot.timestamp, os.toByteArray()));
+			} catch (InterruptedException e) {
+				failed.incrementAndGet();
+				return;
+			} catch (IOException | RuntimeException e) {
+				failed.incrementAndGet();
+			}
+		}
+	}
+
+	// writer
+
+	private void writeLoop() {
+		ArrayList<Record> batch = new ArrayList<>(MAX_BATCH_SIZE);
+		while(true) {
+			Record record;
+			try {
+				record = records.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				break;
+			}
+			if(record == null) {
+				if(serialized && records.isEmpty())
+					break;
+				continue;
+			}
+			batch.add(record);
+			records.drainTo(batch, MAX_BATCH_SIZE - 1);
+			write(batch);
+			batch.clear();
+		}
+		closeSegment();
+	}
+
+	private void write(ArrayList<Record> batch) {
+		int from = 0;
+		while(from < batch.size()) {
+			try {
+				if(segment == null)
+					openSegment();
+				if(segmentSize > SEGMENT_MAGIC.length
+						&& segmentSize + RECORD_HEADER_SIZE + batch.get(from).data.length > config.maxSegmentSize)
+					rollSegment();
+				//records that fit into the current segment (at least one)
+				long size = segmentSize;
+				int to = from;
+				while(to < batch.size()) {
+					long recordSize = RECORD_HEADER_SIZE + batch.get(to).data.length;
+					if(to > from && size + recordSize > config.maxSegmentSize)
+						break;
+					size += recordSize;
+					to++;
+				}
+
+				ByteBuffer[] buffers = new ByteBuffer[(to - from) * 2];
+				for(int i = from; i < to; i++) {
+					Record record = batch.get(i);
+					ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+					header.putInt(record.data.length).putLong(record.timestamp).flip();
+					buffers[(i - from) * 2] = header;
+					buffers[(i - from) * 2 + 1] = ByteBuffer.wrap(record.data);
+				}
+				long remaining = size - segmentSize;
+				while(remaining > 0)
+					remaining -= segment.write(buffers);
+				bytesWritten.addAndGet(size - segmentSize);
+				written.addAndGet(to - from);
+				segmentSize = size;
+				from = to;
+			} catch (IOException e) {
+				//drop the remaining batch and continue with a new segment
+				failed.addAndGet(batch.size() - from);
+				closeSegment();
+				return;
+			}
+		}
+	}
+
+	private void openSegment() throws IOException {
+		Path path = config.directory.resolve(String.format("%s-%013d-%06d%s", config.prefix, startTime, segmentCount++, SEGMENT_SUFFIX));
+		segment = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+		ByteBuffer magic = ByteBuffer.wrap(SEGMENT_MAGIC);
+		while(magic.hasRemaining())
+			segment.write(magic);
+		segmentSize = SEGMENT_MAGIC.length;
+	}
+
+	private void rollSegment() throws IOException {
+		closeSegment();
+		openSegment();
+	}
+
+	private void closeSegment() {
+		if(segment != null) {
+			try {
+				segment.close();
+			} catch (IOException e) {
+				//nothing left to do
+			}
+			segment = null;
+		}
+	}
+
+	/**
+	 * Stops accepting snapshots and waits until all queued snapshots are written. Submissions in progress are
+	 * completed first.
+	 */
+	@Override
+	public void close() throws IOException {
+		lock.writeLock().lock();
+		try {
+			if(closed)
+				return;
+			closed = true;
+		} finally {
+			lock.writeLock().unlock();
+		}
+		try {
+			for(Thread worker: workers)
+				worker.join();
+			serialized = true;
+			writer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while closing snapshot writer", e);
+		}
+	}
+
+}
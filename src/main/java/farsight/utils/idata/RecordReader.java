@@ -0,0 +1,595 @@
+package farsight.utils.idata;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Array;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import com.wm.data.IData;
+import com.wm.data.IDataCursor;
+import com.wm.data.IDataFactory;
+
+/**
+ * Reads a list of records one at a time, so huge lists can be processed with constant memory.
+ *
+ * The records are the documents of the array at the given path (e.g. <code>orders/items</code>) of a JSON document
+ * or a document in the format of the IDataXMLCoder, as written by the {@link RecordWriter} or the
+ * {@link PipelineSerializer}. For JSON, an empty path denotes a top-level array. Only the records and the entries on
+ * the way to the array are read; the remainder of the input is ignored. If the path does not exist or its value is
+ * null, there are no records. Null items are skipped, other items that are not documents are an error.
+ *
+ * JSON numbers are read as Long (BigInteger if too large) or Double, booleans as Boolean. In XML, values are read
+ * as strings. Arrays of documents and strings are typed (IData[], String[]), other arrays are Object[].
+ *
+ * Errors while reading are reported as {@link UncheckedIOException} by the iterator. The reader owns the stream
+ * and closes it with {@link #close()} (or when the {@link #stream()} is closed). Instances are not thread safe.
+ */
+public class RecordReader implements Iterator<IData>, Closeable {
+
+	private final Source source;
+	private IData next = null;
+	private boolean done = false;
+	private long count = 0;
+
+	private RecordReader(Source source) {
+		this.source = source;
+	}
+
+	/**
+	 * Reads the records of the JSON array at the path (or of the top-level array, if the path is empty).
+	 */
+	public static RecordReader json(InputStream in, String path) {
+		return new RecordReader(new JsonSource(in, splitPath(path)));
+	}
+
+	/**
+	 * Reads the records of the array at the path of an IDataXMLCoder document.
+	 */
+	public static RecordReader xml(InputStream in, String path) throws IOException {
+		String[] segments = splitPath(path);
+		if(segments.length == 0)
+			throw new IllegalArgumentException("Path of the records must not be empty");
+		return new RecordReader(new XmlSource(in, segments));
+	}
+
+	static String[] splitPath(String path) {
+		if(path == null)
+			return new String[0];
+		int from = 0, to = path.length();
+		while(from < to && path.charAt(from) == '/')
+			from++;
+		while(to > from && path.charAt(to - 1) == '/')
+			to--;
+		return from == to ? new String[0] : path.substring(from, to).split("/");
+	}
+
+	@Override
+	public boolean hasNext() {
+		if(next == null && !done) {
+			try {
+				next = source.read();
+			} catch (IOException e) {
+				done = true;
+				throw new UncheckedIOException("Cannot read record " + count, e);
+			}
+			done = next == null;
+		}
+		return next != null;
+	}
+
+	@Override
+	public IData next() {
+		if(!hasNext())
+			throw new NoSuchElementException();
+		IData result = next;
+		next = null;
+		count++;
+		return result;
+	}
+
+	/**
+	 * Number of records returned so far.
+	 */
+	public long getCount() {
+		return count;
+	}
+
+	/**
+	 * Returns the remaining records as sequential stream, closing the stream closes this reader.
+	 */
+	public Stream<IData> stream() {
+		return StreamSupport.stream(Spliterators.spliteratorUnknownSize(this, Spliterator.ORDERED | Spliterator.NONNULL), false)
+				.onClose(() -> {
+					try {
+						close();
+					} catch (IOException e) {
+						throw new UncheckedIOException(e);
+					}
+				});
+	}
+
+	@Override
+	public void close() throws IOException {
+		done = true;
+		next = null;
+		source.close();
+	}
+
+	private static Object[] toArray(ArrayList<Object> items, Class<?> componentType) {
+		return items.toArray((Object[]) Array.newInstance(componentType, items.size()));
+	}
+
+	private static Class<?> commonType(ArrayList<Object> items) {
+		Class<?> type = null;
+		for(Object item: items) {
+			if(item == null)
+				continue;
+			Class<?> itemType = item instanceof IData ? IData.class : item.getClass();
+			if(type == null)
+				type = itemType;
+			else if(type != itemType)
+				return Object.class;
+		}
+		return type == IData.class || type == String.class ? type : Object.class;
+	}
+
+	private interface Source extends Closeable {
+		/** returns null after the last record */
+		IData read() throws IOException;
+	}
+
+	// JSON
+
+	private static class JsonSource implements Source {
+
+		private final Reader in;
+		private final String[] path;
+		private final char[] buffer = new char[8192];
+		private int position = 0, limit = 0;
+		private boolean started = false, finished = false;
+
+		private JsonSource(InputStream in, String[] path) {
+			this.in = new InputStreamReader(in, StandardCharsets.UTF_8);
+			this.path = path;
+		}
+
+		@Override
+		public IData read() throws IOException {
+			if(finished)
+				return null;
+			int ch;
+			if(!started) {
+				started = true;
+				if(!findArray())
+					return end();
+				if(peekToken() == ']')
+					return end();
+			} else {
+				ch = readToken();
+				if(ch == ']')
+					return end();
+				if(ch != ',')
+					throw error("Expected ',' or ']'", ch);
+			}
+
+			while(true) {
+				Object item = parseValue();
+				if(item instanceof IData)
+					return (IData) item;
+				if(item != null)
+					throw new IOException("Record is not an object: " + item);
+				//skip null items
+				ch = readToken();
+				if(ch == ']')
+					return end();
+				if(ch != ',')
+					throw error("Expected ',' or ']'", ch);
+			}
+		}
+
+		private IData end() {
+			finished = true;
+			return null;
+		}
+
+		//positions the input at the first item of the array, returns false if the path does not exist
+		private boolean findArray() throws IOException {
+			for(String segment: path) {
+				if(!isNext('{'))
+					return false;
+				if(!findKey(segment))
+					return false;
+			}
+			return isNext('[');
+		}
+
+		//consumes the expected start of a structure, false if the value is null
+		private boolean isNext(char expected) throws IOException {
+			int ch = peekToken();
+			if(ch == expected) {
+				position++;
+				return true;
+			}
+			if(ch == 'n') {
+				parseValue();
+				return false;
+			}
+			throw error("Expected '" + expected + "'", ch);
+		}
+
+		private boolean findKey(String key) throws IOException {
+			if(peekToken() == '}')
+				return false;
+			while(true) {
+				int ch = readToken();
+				if(ch != '"')
+					throw error("Expected key", ch);
+				String name = parseString();
+				expect(':');
+				if(key.equals(name))
+					return true;
+				skipValue();
+				ch = readToken();
+				if(ch == '}')
+					return false;
+				if(ch != ',')
+					throw error("Expected ',' or '}'", ch);
+			}
+		}
+
+		private int peekChar() throws IOException {
+			if(position == limit) {
+				limit = in.read(buffer);
+				position = 0;
+				if(limit <= 0) {
+					limit = 0;
+					return -1;
+				}
+			}
+			return buffer[position];
+		}
+
+		private int readChar() throws IOException {
+			int ch = peekChar();
+			if(ch != -1)
+				position++;
+			return ch;
+		}
+
+		private int peekToken() throws IOException {
+			int ch;
+			while((ch = peekChar()) == ' ' || ch == '\n' || ch == '\r' || ch == '\t')
+				position++;
+			return ch;
+		}
+
+		private int readToken() throws IOException {
+			int ch = peekToken();
+			if(ch != -1)
+				position++;
+			return ch;
+		}
+
+		private void expect(char expected) throws IOException {
+			int ch = readToken();
+			if(ch != expected)
+				throw error("Expected '" + expected + "'", ch);
+		}
+
+		private static IOException error(String message, int ch) {
+			return new IOException(message + (ch == -1 ? " but reached end of input" : " but found '" + (char) ch + "'"));
+		}
+
+		private Object parseValue() throws IOException {
+			int ch = readToken();
+			switch(ch) {
+			case '{':
+				IData document = IDataFactory.create();
+				IDataCursor c = document.getCursor();
+				if(peekToken() == '}') {
+					position++;
+					return document;
+				}
+				do {
+					expect('"');
+					String key = parseString();
+					expect(':');
+					c.insertAfter(key, parseValue());
+				} while((ch = readToken()) == ',');
+				if(ch != '}')
+					throw error("Expected ',' or '}'", ch);
+				return document;
+			case '[':
+				ArrayList<Object> items = new ArrayList<>();
+				if(peekToken() == ']') {
+					position++;
+					return new Object[0];
+				}
+				do {
+					items.add(parseValue());
+				} while((ch = readToken()) == ',');
+				if(ch != ']')
+					throw error("Expected ',' or ']'", ch);
+				return toArray(items, commonType(items));
+			case '"':
+				return parseString();
+			case 't':
+				parseLiteral("rue");
+				return Boolean.TRUE;
+			case 'f':
+				parseLiteral("alse");
+				return Boolean.FALSE;
+			case 'n':
+				parseLiteral("ull");
+				return null;
+			default:
+				if(ch == '-' || ch >= '0' && ch <= '9')
+					return parseNumber((char) ch);
+				throw error("Expected value", ch);
+			}
+		}
+
+		private void parseLiteral(String rest) throws IOException {
+			for(int i = 0; i < rest.length(); i++) {
+				int ch = readChar();
+				if(ch != rest.charAt(i))
+					throw error("Invalid literal", ch);
+			}
+		}
+
+		private Object parseNumber(char first) throws IOException {
+			StringBuilder sb = new StringBuilder().append(first);
+			boolean integral = true;
+			int ch;
+			while((ch = peekChar()) >= '0' && ch <= '9' || ch == '.' || ch == 'e' || ch == 'E' || ch == '+' || ch == '-') {
+				integral &= ch >= '0' && ch <= '9';
+				sb.append((char) ch);
+				position++;
+			}
+			String number = sb.toString();
+			try {
+				if(!integral)
+					return Double.valueOf(number);
+				if(number.length() < 19)
+					return Long.valueOf(number);
+				BigInteger value = new BigInteger(number);
+				return value.bitLength() < 64 ? (Object) value.longValue() : value;
+			} catch (NumberFormatException e) {
+				throw new IOException("Invalid number: " + number);
+			}
+		}
+
+		//reads the remaining string after the opening quote
+		private String parseString() throws IOException {
+			StringBuilder sb = new StringBuilder();
+			while(true) {
+				//copy unescaped runs from the buffer
+				int from = position;
+				while(position < limit && buffer[position] != '"' && buffer[position] != '\\')
+					position++;
+				sb.append(buffer, from, position - from);
+
+				int ch = readChar();
+				if(ch == '"')
+					return sb.toString();
+				if(ch == '\\') {
+					ch = readChar();
+					switch(ch) {
+					case '"': case '\\': case '/': sb.append((char) ch); break;
+					case 'b': sb.append('\b'); break;
+					case 'f': sb.append('\f'); break;
+					case 'n': sb.append('\n'); break;
+					case 'r': sb.append('\r'); break;
+					case 't': sb.append('\t'); break;
+					case 'u':
+						int code = 0;
+						for(int i = 0; i < 4; i++) {
+							int digit = Character.digit(readChar(), 16);
+							if(digit < 0)
+								throw new IOException("Invalid unicode escape");
+							code = code * 16 + digit;
+						}
+						sb.append((char) code);
+						break;
+					default:
+						throw error("Invalid escape", ch);
+					}
+				} else if(ch == -1) {
+					throw error("Expected '\"'", ch);
+				}
+			}
+		}
+
+		//skips a value without building it
+		private void skipValue() throws IOException {
+			int depth = 0;
+			do {
+				int ch = readToken();
+				switch(ch) {
+				case '{': case '[':
+					depth++;
+					break;
+				case '}': case ']':
+					depth--;
+					break;
+				case '"':
+					skipString();
+					break;
+				case ',': case ':':
+					if(depth == 0)
+						throw error("Expected value", ch);
+					break;
+				case -1:
+					throw error("Expected value", ch);
+				default:
+					//literal or number
+					while((ch = peekChar()) != -1 && ",:]} \n\r\t".indexOf(ch) < 0)
+						position++;
+				}
+			} while(depth > 0);
+		}
+
+		private void skipString() throws IOException {
+			int ch;
+			while((ch = readChar()) != '"') {
+				if(ch == '\\')
+					ch = readChar();
+				if(ch == -1)
+					throw error("Expected '\"'", ch);
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			in.close();
+		}
+	}
+
+	// XML
+
+	private static class XmlSource implements Source {
+
+		private static final XMLInputFactory FACTORY;
+
+		static {
+			FACTORY = XMLInputFactory.newFactory();
+			FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+			FACTORY.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+		}
+
+		private final InputStream stream;
+		private final XMLStreamReader in;
+		private final String[] path;
+		private boolean started = false, finished = false;
+
+		private XmlSource(InputStream stream, String[] path) throws IOException {
+			this.stream = stream;
+			this.path = path;
+			try {
+				this.in = FACTORY.createXMLStreamReader(stream);
+			} catch (XMLStreamException e) {
+				throw new IOException("Cannot read XML", e);
+			}
+		}
+
+		@Override
+		public IData read() throws IOException {
+			if(finished)
+				return null;
+			try {
+				if(!started) {
+					started = true;
+					if(!findArray())
+						return end();
+				}
+				while(in.nextTag() == XMLStreamConstants.START_ELEMENT) {
+					Object item = parseElement();
+					if(item instanceof IData)
+						return (IData) item;
+					if(item != null)
+						throw new IOException("Record is not a document: " + in.getLocalName());
+				}
+				return end();
+			} catch (XMLStreamException e) {
+				throw new IOException("Cannot read XML", e);
+			}
+		}
+
+		private IData end() {
+			finished = true;
+			return null;
+		}
+
+		//positions the input at the start element of the array, returns false if the path does not exist
+		private boolean findArray() throws XMLStreamException {
+			//document root and pipeline record
+			if(in.nextTag() != XMLStreamConstants.START_ELEMENT || in.nextTag() != XMLStreamConstants.START_ELEMENT)
+				return false;
+			for(int i = 0; i < path.length; i++) {
+				if(!findChild(path[i], i == path.length - 1 ? "array" : "record"))
+					return false;
+			}
+			return true;
+		}
+
+		private boolean findChild(String name, String element) throws XMLStreamException {
+			while(in.nextTag() == XMLStreamConstants.START_ELEMENT) {
+				if(element.equals(in.getLocalName()) && name.equals(in.getAttributeValue(null, "name")))
+					return true;
+				skipElement();
+			}
+			return false;
+		}
+
+		private void skipElement() throws XMLStreamException {
+			int depth = 1;
+			while(depth > 0) {
+				int event = in.next();
+				if(event == XMLStreamConstants.START_ELEMENT)
+					depth++;
+				else if(event == XMLStreamConstants.END_ELEMENT)
+					depth--;
+			}
+		}
+
+		//reads the element at the current start element up to its end element
+		private Object parseElement() throws XMLStreamException {
+			switch(in.getLocalName()) {
+			case "record":
+			case "idata":
+				IData document = IDataFactory.create();
+				IDataCursor c = document.getCursor();
+				while(in.nextTag() == XMLStreamConstants.START_ELEMENT) {
+					String key = in.getAttributeValue(null, "name");
+					c.insertAfter(key, parseElement());
+				}
+				return document;
+			case "array":
+				//typed by the attributes, so that empty arrays are typed as well
+				Class<?> type = null;
+				if("1".equals(in.getAttributeValue(null, "depth"))) {
+					String itemType = in.getAttributeValue(null, "type");
+					type = "record".equals(itemType) ? IData.class : "value".equals(itemType) ? String.class : null;
+				}
+				ArrayList<Object> items = new ArrayList<>();
+				while(in.nextTag() == XMLStreamConstants.START_ELEMENT)
+					items.add(parseElement());
+				return toArray(items, type != null ? type : commonType(items));
+			case "null":
+				skipElement();
+				return null;
+			default:
+				return in.getElementText();
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				in.close();
+			} catch (XMLStreamException e) {
+				//the stream is closed anyway
+			} finally {
+				stream.close();
+			}
+		}
+	}
+
+}
@@ -0,0 +1,134 @@
+package farsight.utils.idata;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+import com.wm.data.IData;
+import com.wm.data.IDataCursor;
+
+import farsight.utils.idata.TruncatingPipelineWriter.Syntax;
+
+/**
+ * Writes a list of records incrementally, without building the enclosing array.
+ *
+ * The output is a document with the records as array at the given path (e.g. <code>orders/items</code>), in the
+ * format of the IDataXMLCoder or as JSON. For JSON, an empty path writes a top-level array. The records can be read
+ * back one at a time with the {@link RecordReader} (or all at once with the {@link PipelineSerializer}). Values
+ * other than documents, arrays and strings are written as strings (as numbers or booleans in JSON).
+ *
+ * The enclosing document is completed and the stream closed by {@link #close()}. Instances are not thread safe.
+ */
+public class RecordWriter implements Closeable, Flushable {
+
+	private final Writer out;
+	private final Syntax syntax;
+	private final String[] path;
+	private final boolean topLevel;
+	private final StringBuilder scratch = new StringBuilder();
+	private long count = 0;
+	private boolean closed = false;
+
+	private RecordWriter(OutputStream out, PipelineFormat format, String path) throws IOException {
+		this.syntax = TruncatingPipelineWriter.syntax(format);
+		this.path = RecordReader.splitPath(path);
+		this.topLevel = this.path.length == 0;
+		if(topLevel && format != PipelineFormat.JSON)
+			throw new IllegalArgumentException("Path of the records must not be empty");
+		this.out = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+
+		if(!topLevel)
+			this.out.write(syntax.header());
+		for(int i = 0; i < this.path.length - 1; i++)
+			this.out.write(syntax.openDocument(this.path[i], false, true));
+		this.out.write(syntax.openArray(topLevel ? null : this.path[this.path.length - 1], topLevel, true, new IData[0]));
+	}
+
+	/**
+	 * Writes records as JSON array at the path (or as top-level array, if the path is empty).
+	 */
+	public static RecordWriter json(OutputStream out, String path) throws IOException {
+		return new RecordWriter(out, PipelineFormat.JSON, path);
+	}
+
+	/**
+	 * Writes records as array of documents at the path of an IDataXMLCoder document.
+	 */
+	public static RecordWriter xml(OutputStream out, String path) throws IOException {
+		return new RecordWriter(out, PipelineFormat.XML, path);
+	}
+
+	public void write(IData record) throws IOException {
+		if(closed)
+			throw new IOException("Record writer is closed");
+		if(record == null)
+			throw new IllegalArgumentException("Record must not be null");
+		writeValue(null, record, true, count == 0);
+		count++;
+	}
+
+	/**
+	 * Number of records written.
+	 */
+	public long getCount() {
+		return count;
+	}
+
+	private void writeValue(String key, Object value, boolean item, boolean first) throws IOException {
+		if(value == null) {
+			out.write(syntax.nullValue(key, item, first));
+		} else if(value instanceof IData) {
+			out.write(syntax.openDocument(key, item, first));
+			IDataCursor c = ((IData) value).getCursor();
+			boolean firstEntry = true;
+			while(c.next()) {
+				writeValue(c.getKey(), c.getValue(), false, firstEntry);
+				firstEntry = false;
+			}
+			out.write(syntax.closeDocument());
+		} else if(value instanceof Object[]) {
+			Object[] array = (Object[]) value;
+			out.write(syntax.openArray(key, item, first, array));
+			for(int i = 0; i < array.length; i++)
+				writeValue(null, array[i], true, i == 0);
+			out.write(syntax.closeArray());
+		} else {
+			String text = syntax.text(value);
+			scratch.setLength(0);
+			syntax.escape(text, 0, text.length(), scratch);
+			out.write(syntax.openLeaf(key, item, first, value));
+			out.append(scratch);
+			out.write(syntax.closeLeaf(key, value));
+		}
+	}
+
+	@Override
+	public void flush() throws IOException {
+		out.flush();
+	}
+
+	/**
+	 * Completes the document and closes the stream.
+	 */
+	@Override
+	public void close() throws IOException {
+		if(closed)
+			return;
+		closed = true;
+		try {
+			out.write(syntax.closeArray());
+			for(int i = 0; i < path.length - 1; i++)
+				out.write(syntax.closeDocument());
+			if(!topLevel)
+				out.write(syntax.footer());
+		} finally {
+			out.close();
+		}
+	}
+
+}
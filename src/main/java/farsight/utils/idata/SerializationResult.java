@@ -0,0 +1,33 @@
+package farsight.utils.idata;
+
+/**
+ * Result of a streaming serialization, see {@link PipelineSerializer}.
+ */
+public final class SerializationResult {
+
+	private final long bytesWritten;
+	private final boolean truncated;
+
+	public SerializationResult(long bytesWritten, boolean truncated) {
+		this.bytesWritten = bytesWritten;
+		this.truncated = truncated;
+	}
+
+	public long getBytesWritten() {
+		return bytesWritten;
+	}
+
+	/**
+	 * True if the limit was exceeded. The output then ends after exactly <code>limit</code> bytes and is
+	 * incomplete.
+	 */
+	public boolean isTruncated() {
+		return truncated;
+	}
+
+	@Override
+	public String toString() {
+		return "SerializationResult [bytesWritten=" + bytesWritten + ", truncated=" + truncated + "]";
+	}
+
+}
@@ -5,6 +5,14 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
 
 import com.softwareag.util.IDataMap;
 import com.wm.data.IData;
@@ -14,6 +22,11 @@ import com.wm.util.coder.IDataCodable;
 /**
  * InputStream that is serializable, so that it can be transmitted in a pipeline.
  * 
+ * Streams created by {@link #create(InputStream, int)} keep large content in a memory-mapped temporary file
+ * instead of the heap. The file is opened with {@link StandardOpenOption#DELETE_ON_CLOSE}, so it is deleted right
+ * after mapping, or by the platform once the mapping is released where mapped files cannot be deleted. The mapping
+ * is released when the stream is garbage collected. Serialization and {@link #getIData()} copy the content to the
+ * heap.
  * 
  * @author wickec
  *
@@ -22,6 +35,11 @@ public class SerializeableInputStream extends InputStream implements IDataCodabl
 
 	private static final long serialVersionUID = -2831188247186394624L;
 
+	private static final int SPILL_BUFFER_SIZE = 64 * 1024;
+
+	//content of spilled streams, buf is empty then
+	private transient MappedByteBuffer mapped = null;
+
 	//careful DO NOT USE THIS with a stream that could be open forever!
 	public SerializeableInputStream(InputStream in) throws IOException {
 		this(toByteArray(in));
@@ -32,6 +50,85 @@ public class SerializeableInputStream extends InputStream implements IDataCodabl
 		this(new byte[0]);
 	}
 	
+	private SerializeableInputStream(MappedByteBuffer mapped) {
+		this(new byte[0]);
+		this.mapped = mapped;
+		this.count = mapped.capacity();
+	}
+	
+	/**
+	 * Reads the stream and closes it. Content up to <code>threshold</code> bytes is kept in memory, larger content
+	 * is spilled to a memory-mapped temporary file (at most 2 GB).
+	 */
+	public static SerializeableInputStream create(InputStream in, int threshold) throws IOException {
+		try (InputStream is = in) {
+			byte[] buffer = new byte[Math.max(1, Math.min(threshold, SPILL_BUFFER_SIZE))];
+			int length = 0, n;
+			while(-1 != (n = is.read(buffer, length, buffer.length - length))) {
+				length += n;
+				if(length == buffer.length) {
+					if(length >= threshold)
+						break;
+					buffer = Arrays.copyOf(buffer, (int) Math.min(threshold, 2L * length));
+				}
+			}
+			if(n == -1 || (n = is.read()) == -1)
+				return new SerializeableInputStream(length == buffer.length ? buffer : Arrays.copyOf(buffer, length));
+			return new SerializeableInputStream(spill(buffer, length, n, is));
+		}
+	}
+	
+	private static MappedByteBuffer spill(byte[] head, int length, int next, InputStream in) throws IOException {
+		Path file = Files.createTempFile("farsight-stream-", ".tmp");
+		//the file is deleted when the channel and the mapping are released, even if spilling fails
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE,
+				StandardOpenOption.DELETE_ON_CLOSE)) {
+			writeFully(channel, ByteBuffer.wrap(head, 0, length));
+			writeFully(channel, ByteBuffer.wrap(new byte[] { (byte) next }));
+			byte[] buffer = head.length >= SPILL_BUFFER_SIZE ? head : new byte[SPILL_BUFFER_SIZE];
+			int n;
+			while(-1 != (n = in.read(buffer))) {
+				writeFully(channel, ByteBuffer.wrap(buffer, 0, n));
+				if(channel.position() > Integer.MAX_VALUE)
+					throw new IOException("Stream too large: more than " + Integer.MAX_VALUE + " bytes");
+			}
+			return channel.map(MapMode.READ_ONLY, 0, channel.position());
+		}
+	}
+	
+	private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+		while(buffer.hasRemaining())
+			channel.write(buffer);
+	}
+	
+	/**
+	 * Returns true if the content was spilled to a temporary file.
+	 */
+	public boolean isSpilled() {
+		return mapped != null;
+	}
+	
+	private synchronized byte[] content() {
+		if(mapped == null)
+			return buf;
+		byte[] content = new byte[count];
+		mapped.position(0);
+		mapped.get(content);
+		return content;
+	}
+	
+	//spilled streams are serialized with their content
+	private Object writeReplace() {
+		if(mapped == null)
+			return this;
+		synchronized(this) {
+			SerializeableInputStream copy = new SerializeableInputStream(content());
+			copy.pos = pos;
+			copy.mark = mark;
+			return copy;
+		}
+	}
+	
 	private static byte[] toByteArray(InputStream in) throws IOException {
 	    ByteArrayOutputStream out = new ByteArrayOutputStream();
 	    try (InputStream is = in) {
@@ -142,6 +239,9 @@ public class SerializeableInputStream extends InputStream implements IDataCodabl
      *          stream has been reached.
      */
     public synchronized int read() {
+        if (mapped != null) {
+            return (pos < count) ? (mapped.get(pos++) & 0xff) : -1;
+        }
         return (pos < count) ? (buf[pos++] & 0xff) : -1;
     }
 
@@ -192,7 +292,12 @@ public class SerializeableInputStream extends InputStream implements IDataCodabl
         if (len <= 0) {
             return 0;
         }
-        System.arraycopy(buf, pos, b, off, len);
+        if (mapped != null) {
+            mapped.position(pos);
+            mapped.get(b, off, len);
+        } else {
+            System.arraycopy(buf, pos, b, off, len);
+        }
         pos += len;
         return len;
     }
@@ -284,7 +389,10 @@ public class SerializeableInputStream extends InputStream implements IDataCodabl
 	public void setIData(IData paramIData) {
 		IDataMap map = new IDataMap(paramIData);
 		byte[] tmp = (byte[]) map.get("content");
-		if(tmp != null) buf = tmp; 
+		if(tmp != null) {
+			buf = tmp;
+			mapped = null;
+		}
 		count = map.getAsInteger("count", count);
 		mark = map.getAsInteger("mark", mark);
 		pos = map.getAsInteger("pos", pos);
@@ -293,7 +401,7 @@ public class SerializeableInputStream extends InputStream implements IDataCodabl
 	@Override
 	public IData getIData() {
 		IDataMap map = new IDataMap();
-		map.put("content", buf);
+		map.put("content", content());
 		map.put("count", count);
 		map.put("mark", mark);
 		map.put("pos", pos);
@@ -0,0 +1,270 @@
+package farsight.utils.idata;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import com.wm.data.IData;
+import com.wm.data.IDataCursor;
+import com.wm.data.IDataFactory;
+import com.wm.util.coder.IDataCodable;
+import com.wm.util.coder.IDataCoder;
+
+import farsight.utils.idata.DocumentShape.Kind;
+
+/**
+ * Variant of the {@link IDataBinaryCoder} specialized for documents of a known {@link DocumentShape}.
+ *
+ * Documents matching the shape are written without keys: their values are written in the order of the shape,
+ * strings without type tag and nested documents and document lists by their nested shapes. Documents that do
+ * not match and values of an unexpected kind fall back to the generic binary encoding, so any document can be
+ * encoded. The data can only be decoded with the same shape, which is verified by a fingerprint.
+ *
+ * Layout (as the binary coder with version 2):
+ * <pre>
+ * header   magic "FIDB", version (1 byte), length of the rest (int32)
+ * strings  varint count, then varint UTF-8 length and bytes per string
+ * body     shape fingerprint (int32), root document slot
+ * </pre>
+ * Documents read from streams are limited to {@link IDataBinaryCoder#DEFAULT_MAX_LENGTH}. Instances hold no state
+ * besides the shape and may be shared.
+ */
+public class ShapedIDataCoder extends IDataCoder {
+
+	static final int VERSION = 2;
+
+	//document and list slots
+	private static final int S_NULL = 0;
+	private static final int S_SHAPED = 1;
+	private static final int S_GENERIC = 2;
+	//string slots, larger values are dictionary references
+	private static final int S_INLINE = 1;
+	private static final int S_STRING_GENERIC = 2;
+	private static final int S_REF = 3;
+
+	private final DocumentShape shape;
+
+	public ShapedIDataCoder(DocumentShape shape) {
+		this.shape = shape;
+	}
+
+	public DocumentShape getShape() {
+		return shape;
+	}
+
+	@Override
+	public void encode(OutputStream os, IData data) throws IOException {
+		Encoder encoder = encodeBody(data);
+		encoder.writeHeader(VERSION).writeTo(os);
+		encoder.body.writeTo(os);
+	}
+
+	@Override
+	public byte[] encodeToBytes(IData data) throws IOException {
+		Encoder encoder = encodeBody(data);
+		BinaryOutput header = encoder.writeHeader(VERSION);
+		byte[] bytes = new byte[header.size() + encoder.body.size()];
+		System.arraycopy(header.buffer(), 0, bytes, 0, header.size());
+		System.arraycopy(encoder.body.buffer(), 0, bytes, header.size(), encoder.body.size());
+		return bytes;
+	}
+
+	private Encoder encodeBody(IData data) throws IOException {
+		Encoder encoder = new Encoder();
+		encoder.body.writeInt(shape.getFingerprint());
+		encoder.writeDocumentSlot(data, shape);
+		return encoder;
+	}
+
+	/**
+	 * Reads exactly one encoded document from the stream.
+	 */
+	@Override
+	public IData decode(InputStream is) throws IOException {
+		int length = IDataBinaryCoder.readHeader(is, VERSION, IDataBinaryCoder.DEFAULT_MAX_LENGTH);
+		return decode(new BinaryInput(BinaryInput.readFully(is, length), 0, length));
+	}
+
+	@Override
+	public IData decodeFromBytes(byte[] bytes) throws IOException {
+		BinaryInput in = new BinaryInput(bytes, 0, bytes.length);
+		int length = IDataBinaryCoder.readRest(in, VERSION);
+		return decode(new BinaryInput(bytes, IDataBinaryCoder.HEADER_SIZE, length));
+	}
+
+	private IData decode(BinaryInput in) throws IOException {
+		Decoder decoder = new Decoder(IDataBinaryCoder.readDictionary(in));
+		if(in.readInt() != shape.getFingerprint())
+			throw new IOException("Invalid data: encoded with a different document shape");
+		try {
+			return decoder.readDocumentSlot(in, shape);
+		} catch (RuntimeException e) {
+			throw new IOException("Invalid data: " + e, e);
+		}
+	}
+
+	private static boolean isDocument(Object value) {
+		return value instanceof IData && !(value instanceof IDataCodable);
+	}
+
+	// encoding
+
+	private static class Encoder extends IDataBinaryCoder.Encoder {
+
+		void writeDocumentSlot(Object value, DocumentShape shape) throws IOException {
+			if(value == null) {
+				body.writeByte(S_NULL);
+			} else if(isDocument(value) && shape.matches((IData) value)) {
+				body.writeByte(S_SHAPED);
+				writeShaped((IData) value, shape);
+			} else {
+				body.writeByte(S_GENERIC);
+				writeValue(value);
+			}
+		}
+
+		private void writeShaped(IData document, DocumentShape shape) throws IOException {
+			IDataCursor c = document.getCursor();
+			for(int i = 0; i < shape.kinds.length; i++) {
+				c.next();
+				Object value = c.getValue();
+				switch(shape.kinds[i]) {
+				case STRING:
+					writeStringSlot(value);
+					break;
+				case DOCUMENT:
+					writeDocumentSlot(value, shape.shapes[i]);
+					break;
+				case DOCUMENT_LIST:
+					writeListSlot(value, shape.shapes[i]);
+					break;
+				default:
+					writeValue(value);
+				}
+			}
+		}
+
+		private void writeStringSlot(Object value) throws IOException {
+			if(value == null) {
+				body.writeByte(S_NULL);
+			} else if(!(value instanceof String)) {
+				body.writeByte(S_STRING_GENERIC);
+				writeValue(value);
+			} else if(((String) value).length() <= IDataBinaryCoder.DICTIONARY_MAX_LENGTH) {
+				body.writeVarint(ref((String) value) + S_REF);
+			} else {
+				body.writeByte(S_INLINE);
+				body.writeString((String) value);
+			}
+		}
+
+		private void writeListSlot(Object value, DocumentShape itemShape) throws IOException {
+			if(value == null) {
+				body.writeByte(S_NULL);
+			} else if(value.getClass() == IData[].class) {
+				IData[] items = (IData[]) value;
+				body.writeByte(S_SHAPED);
+				body.writeVarint(items.length);
+				for(IData item: items)
+					writeDocumentSlot(item, itemShape);
+			} else {
+				body.writeByte(S_GENERIC);
+				writeValue(value);
+			}
+		}
+	}
+
+	// decoding
+
+	private static class Decoder extends IDataBinaryCoder.Decoder {
+
+		Decoder(String[] dictionary) {
+			super(dictionary);
+		}
+
+		IData readDocumentSlot(BinaryInput in, DocumentShape shape) throws IOException {
+			int slot = in.readByte();
+			switch(slot) {
+			case S_NULL:
+				return null;
+			case S_SHAPED:
+				return readShaped(in, shape);
+			case S_GENERIC:
+				Object value = readValue(in);
+				if(value != null && !(value instanceof IData))
+					throw new IOException("Invalid data: document expected");
+				return (IData) value;
+			default:
+				throw new IOException("Invalid data: unknown document slot " + slot);
+			}
+		}
+
+		private IData readShaped(BinaryInput in, DocumentShape shape) throws IOException {
+			enter();
+			try {
+				return readEntries(in, shape);
+			} finally {
+				exit();
+			}
+		}
+
+		private IData readEntries(BinaryInput in, DocumentShape shape) throws IOException {
+			IData document = IDataFactory.create();
+			IDataCursor c = document.getCursor();
+			for(int i = 0; i < shape.kinds.length; i++) {
+				Kind kind = shape.kinds[i];
+				Object value;
+				switch(kind) {
+				case STRING:
+					value = readStringSlot(in);
+					break;
+				case DOCUMENT:
+					value = readDocumentSlot(in, shape.shapes[i]);
+					break;
+				case DOCUMENT_LIST:
+					value = readListSlot(in, shape.shapes[i]);
+					break;
+				default:
+					value = readValue(in);
+				}
+				c.insertAfter(shape.keys[i], value);
+			}
+			return document;
+		}
+
+		private Object readStringSlot(BinaryInput in) throws IOException {
+			int slot = in.readLength();
+			switch(slot) {
+			case S_NULL:
+				return null;
+			case S_INLINE:
+				return in.readString();
+			case S_STRING_GENERIC:
+				return readValue(in);
+			default:
+				int ref = slot - S_REF;
+				if(ref >= dictionary.length)
+					throw new IOException("Invalid string reference: " + ref);
+				return entry(ref);
+			}
+		}
+
+		private Object readListSlot(BinaryInput in, DocumentShape itemShape) throws IOException {
+			int slot = in.readByte();
+			switch(slot) {
+			case S_NULL:
+				return null;
+			case S_SHAPED:
+				IData[] items = new IData[in.readCount(1)];
+				for(int i = 0; i < items.length; i++)
+					items[i] = readDocumentSlot(in, itemShape);
+				return items;
+			case S_GENERIC:
+				return readValue(in);
+			default:
+				throw new IOException("Invalid data: unknown list slot " + slot);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,536 @@
+package farsight.utils.idata;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+import com.wm.data.IData;
+import com.wm.data.IDataCursor;
+
+/**
+ * Best-effort serialization of pipelines within a byte budget, e.g. for error logs.
+ *
+ * Other than {@link PipelineSerializer} with a limit, this never fails for large pipelines: the output is written in
+ * a single pass and always is a well-formed XML (in the format of the IDataXMLCoder) or JSON document of at most
+ * <code>limit</code> bytes. To stay within the budget, the bytes needed to close all open elements are reserved
+ * while writing, long strings are shortened, and documents and arrays are cut off with a marker telling how many
+ * entries were omitted (a comment in XML, a <code>$truncated</code> entry or item in JSON). Independent of the
+ * budget, strings, arrays and nesting depth are limited as configured.
+ *
+ * Values other than documents, arrays and strings are written as strings (as numbers or booleans in JSON), so the
+ * output is meant to be read, not to restore the pipeline exactly. Instances are immutable and may be shared.
+ */
+public class TruncatingPipelineWriter {
+
+	public static class Builder {
+
+		private final PipelineFormat format;
+		private int limit = 64 * 1024;
+		private int maxStringLength = 4096;
+		private int maxArrayItems = 1000;
+		private int maxDepth = 32;
+
+		private Builder(PipelineFormat format) {
+			if(format == PipelineFormat.BINARY)
+				throw new IllegalArgumentException("Truncating serialization supports XML and JSON only");
+			this.format = format;
+		}
+
+		public Builder limit(int limit) {
+			this.limit = limit;
+			return this;
+		}
+
+		public Builder maxStringLength(int maxStringLength) {
+			this.maxStringLength = maxStringLength;
+			return this;
+		}
+
+		public Builder maxArrayItems(int maxArrayItems) {
+			this.maxArrayItems = maxArrayItems;
+			return this;
+		}
+
+		public Builder maxDepth(int maxDepth) {
+			this.maxDepth = maxDepth;
+			return this;
+		}
+
+		public TruncatingPipelineWriter build() {
+			Syntax syntax = syntax(format);
+			int minimum = utf8Length(syntax.header()) + utf8Length(syntax.footer()) + syntax.markerReserve();
+			if(limit < minimum)
+				throw new IllegalArgumentException("Limit must be at least " + minimum + " bytes");
+			return new TruncatingPipelineWriter(this, syntax);
+		}
+	}
+
+	private static final String ELIDED = "[elided]";
+	private static final int MIN_STRING_BYTES = 8;
+
+	private final int limit, maxStringLength, maxArrayItems, maxDepth;
+	private final Syntax syntax;
+
+	private TruncatingPipelineWriter(Builder builder, Syntax syntax) {
+		this.limit = builder.limit;
+		this.maxStringLength = builder.maxStringLength;
+		this.maxArrayItems = builder.maxArrayItems;
+		this.maxDepth = builder.maxDepth;
+		this.syntax = syntax;
+	}
+
+	public static Builder builder(PipelineFormat format) {
+		return new Builder(format);
+	}
+
+	/**
+	 * Writes the pipeline, the result is marked as truncated if anything was shortened or omitted. The stream is
+	 * flushed, but not closed.
+	 */
+	public SerializationResult write(IData pipeline, OutputStream out) throws IOException {
+		Run run = new Run(new BufferedOutputStream(out));
+		run.write(pipeline);
+		run.out.flush();
+		return new SerializationResult(run.written, run.truncated);
+	}
+
+	public byte[] toBytes(IData pipeline) {
+		ByteArrayOutputStream os = new ByteArrayOutputStream(Math.min(limit, 8192));
+		try {
+			write(pipeline, os);
+		} catch (IOException e) {
+			//not thrown by ByteArrayOutputStream
+			throw new IllegalStateException(e);
+		}
+		return os.toByteArray();
+	}
+
+	static Syntax syntax(PipelineFormat format) {
+		switch(format) {
+		case XML:
+			return new XmlSyntax();
+		case JSON:
+			return new JsonSyntax();
+		default:
+			throw new IllegalArgumentException("Unsupported text format: " + format);
+		}
+	}
+
+	static int utf8Length(CharSequence s) {
+		int length = 0;
+		for(int i = 0; i < s.length(); i++) {
+			char ch = s.charAt(i);
+			if(ch < 0x80)
+				length++;
+			else if(ch < 0x800)
+				length += 2;
+			else if(Character.isHighSurrogate(ch) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+				length += 4;
+				i++;
+			} else if(Character.isSurrogate(ch))
+				length++; //replaced by '?'
+			else
+				length += 3;
+		}
+		return length;
+	}
+
+	private static class Frame {
+		private final boolean array;
+		private final String closer;
+		private final int reserved;
+		private boolean first = true, stopped = false;
+		private int count = 0, omitted = 0;
+
+		private Frame(boolean array, String closer, int reserved) {
+			this.array = array;
+			this.closer = closer;
+			this.reserved = reserved;
+		}
+	}
+
+	private class Run {
+		private final OutputStream out;
+		private final StringBuilder scratch = new StringBuilder();
+		private long written = 0, reserve = 0;
+		private boolean truncated = false;
+
+		private Run(OutputStream out) {
+			this.out = out;
+		}
+
+		private void emit(String s) throws IOException {
+			byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+			out.write(bytes);
+			written += bytes.length;
+		}
+
+		private long available() {
+			return limit - written - reserve;
+		}
+
+		private void write(IData pipeline) throws IOException {
+			emit(syntax.header());
+			Frame root = push(false, syntax.footer());
+			if(pipeline != null)
+				writeEntries(pipeline, root, 0);
+			pop(root);
+		}
+
+		private Frame push(boolean array, String closer) {
+			Frame frame = new Frame(array, closer, utf8Length(closer) + syntax.markerReserve());
+			reserve += frame.reserved;
+			return frame;
+		}
+
+		private void pop(Frame frame) throws IOException {
+			reserve -= frame.reserved;
+			if(frame.omitted > 0) {
+				truncated = true;
+				emit(syntax.omitted(frame.omitted, frame.array, frame.first));
+			}
+			emit(frame.closer);
+		}
+
+		private void writeEntries(IData document, Frame frame, int depth) throws IOException {
+			IDataCursor c = document.getCursor();
+			while(c.next()) {
+				if(frame.stopped || !writeValue(c.getKey(), c.getValue(), frame, depth)) {
+					frame.stopped = true;
+					frame.omitted++;
+				}
+			}
+		}
+
+		private void writeItems(Object[] array, Frame frame, int depth) throws IOException {
+			int count = Math.min(array.length, maxArrayItems);
+			for(int i = 0; i < count; i++) {
+				if(!writeValue(null, array[i], frame, depth))
+					break;
+			}
+			frame.omitted = array.length - frame.count;
+		}
+
+		//returns false if the value does not fit
+		private boolean writeValue(String key, Object value, Frame frame, int depth) throws IOException {
+			if((value instanceof IData || value instanceof Object[]) && depth >= maxDepth) {
+				truncated = true;
+				value = ELIDED;
+			}
+
+			String opener;
+			if(value == null) {
+				opener = syntax.nullValue(key, frame.array, frame.first);
+				if(utf8Length(opener) > available())
+					return false;
+				emit(opener);
+			} else if(value instanceof IData || value instanceof Object[]) {
+				boolean array = value instanceof Object[];
+				opener = array ? syntax.openArray(key, frame.array, frame.first, (Object[]) value)
+						: syntax.openDocument(key, frame.array, frame.first);
+				String closer = array ? syntax.closeArray() : syntax.closeDocument();
+				if(utf8Length(opener) + utf8Length(closer) + syntax.markerReserve() > available())
+					return false;
+				emit(opener);
+				Frame child = push(array, closer);
+				if(array)
+					writeItems((Object[]) value, child, depth + 1);
+				else
+					writeEntries((IData) value, child, depth + 1);
+				pop(child);
+			} else if(!writeLeaf(key, value, frame)) {
+				return false;
+			}
+			frame.first = false;
+			frame.count++;
+			return true;
+		}
+
+		private boolean writeLeaf(String key, Object value, Frame frame) throws IOException {
+			String opener = syntax.openLeaf(key, frame.array, frame.first, value);
+			String closer = syntax.closeLeaf(key, value);
+			String text = syntax.text(value);
+			long space = available() - utf8Length(opener) - utf8Length(closer);
+
+			scratch.setLength(0);
+			int length = Math.min(text.length(), maxStringLength);
+			if(length == text.length()) {
+				syntax.escape(text, 0, length, scratch);
+				if(utf8Length(scratch) <= space) {
+					emit(opener);
+					emit(scratch.toString());
+					emit(closer);
+					return true;
+				}
+			}
+			if(!syntax.isTruncatable(value))
+				return false;
+
+			//shortened string with marker
+			String marker = "... [" + text.length() + " chars]";
+			space -= utf8Length(marker);
+			if(space < MIN_STRING_BYTES)
+				return false;
+			scratch.setLength(0);
+			int bytes = 0;
+			for(int i = 0; i < length; i++) {
+				int end = Character.isHighSurrogate(text.charAt(i)) && i + 1 < length ? i + 2 : i + 1;
+				int mark = scratch.length();
+				syntax.escape(text, i, end, scratch);
+				int size = utf8Length(scratch.subSequence(mark, scratch.length()));
+				if(bytes + size > space) {
+					scratch.setLength(mark);
+					break;
+				}
+				bytes += size;
+				i = end - 1;
+			}
+			truncated = true;
+			emit(opener);
+			emit(scratch.toString());
+			emit(marker);
+			emit(closer);
+			return true;
+		}
+	}
+
+	// syntax, also used by the RecordWriter
+
+	static abstract class Syntax {
+		abstract String header();
+
+		abstract String footer();
+
+		/** maximum size of an omitted marker */
+		abstract int markerReserve();
+
+		abstract String omitted(int count, boolean array, boolean first);
+
+		abstract String openDocument(String key, boolean item, boolean first);
+
+		abstract String closeDocument();
+
+		abstract String openArray(String key, boolean item, boolean first, Object[] array);
+
+		abstract String closeArray();
+
+		abstract String openLeaf(String key, boolean item, boolean first, Object value);
+
+		abstract String closeLeaf(String key, Object value);
+
+		abstract String nullValue(String key, boolean item, boolean first);
+
+		String text(Object value) {
+			return String.valueOf(value);
+		}
+
+		boolean isTruncatable(Object value) {
+			return true;
+		}
+
+		abstract void escape(String text, int from, int to, StringBuilder target);
+	}
+
+	private static class XmlSyntax extends Syntax {
+
+		private static final String RECORD_CLASS = "com.wm.data.ISMemDataImpl";
+
+		@Override
+		String header() {
+			return "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<IDataXMLCoder version=\"1.0\"><record javaclass=\"" + RECORD_CLASS + "\">";
+		}
+
+		@Override
+		String footer() {
+			return "</record></IDataXMLCoder>\n";
+		}
+
+		@Override
+		int markerReserve() {
+			return omitted(Integer.MAX_VALUE, false, false).length();
+		}
+
+		@Override
+		String omitted(int count, boolean array, boolean first) {
+			return "<!-- " + count + (array ? " items" : " entries") + " omitted -->";
+		}
+
+		private String name(String key) {
+			if(key == null)
+				return "";
+			StringBuilder sb = new StringBuilder(key.length() + 8).append(" name=\"");
+			escape(key, 0, key.length(), sb);
+			return sb.append('"').toString();
+		}
+
+		@Override
+		String openDocument(String key, boolean item, boolean first) {
+			return "<record" + name(key) + " javaclass=\"" + RECORD_CLASS + "\">";
+		}
+
+		@Override
+		String closeDocument() {
+			return "</record>";
+		}
+
+		@Override
+		String openArray(String key, boolean item, boolean first, Object[] array) {
+			Class<?> type = array.getClass();
+			int depth = 0;
+			while(type.isArray()) {
+				type = type.getComponentType();
+				depth++;
+			}
+			return "<array" + name(key) + " type=\"" + (IData.class.isAssignableFrom(type) ? "record" : "value")
+					+ "\" depth=\"" + depth + "\">";
+		}
+
+		@Override
+		String closeArray() {
+			return "</array>";
+		}
+
+		@Override
+		String openLeaf(String key, boolean item, boolean first, Object value) {
+			return "<value" + name(key) + ">";
+		}
+
+		@Override
+		String closeLeaf(String key, Object value) {
+			return "</value>";
+		}
+
+		@Override
+		String nullValue(String key, boolean item, boolean first) {
+			return "<null" + name(key) + "/>";
+		}
+
+		@Override
+		void escape(String text, int from, int to, StringBuilder target) {
+			for(int i = from; i < to; i++) {
+				char ch = text.charAt(i);
+				switch(ch) {
+				case '<': target.append("&lt;"); break;
+				case '>': target.append("&gt;"); break;
+				case '&': target.append("&amp;"); break;
+				case '"': target.append("&quot;"); break;
+				case '\r': target.append("&#13;"); break;
+				default:
+					//characters not allowed in XML 1.0
+					if(ch < 0x20 && ch != '\t' && ch != '\n' || ch == 0xFFFE || ch == 0xFFFF)
+						target.append('?');
+					else
+						target.append(ch);
+				}
+			}
+		}
+	}
+
+	private static class JsonSyntax extends Syntax {
+
+		private static final String TRUNCATED_KEY = "$truncated";
+
+		@Override
+		String header() {
+			return "{";
+		}
+
+		@Override
+		String footer() {
+			return "}";
+		}
+
+		@Override
+		int markerReserve() {
+			return omitted(Integer.MAX_VALUE, false, false).length();
+		}
+
+		@Override
+		String omitted(int count, boolean array, boolean first) {
+			String text = count + (array ? " items" : " entries") + " omitted\"";
+			return (first ? "" : ",") + (array ? "\"" + TRUNCATED_KEY + ": " : "\"" + TRUNCATED_KEY + "\":\"") + text;
+		}
+
+		private String prefix(String key, boolean item, boolean first) {
+			StringBuilder sb = new StringBuilder(first ? "" : ",");
+			if(!item) {
+				sb.append('"');
+				if(key != null)
+					escape(key, 0, key.length(), sb);
+				sb.append("\":");
+			}
+			return sb.toString();
+		}
+
+		@Override
+		String openDocument(String key, boolean item, boolean first) {
+			return prefix(key, item, first) + "{";
+		}
+
+		@Override
+		String closeDocument() {
+			return "}";
+		}
+
+		@Override
+		String openArray(String key, boolean item, boolean first, Object[] array) {
+			return prefix(key, item, first) + "[";
+		}
+
+		@Override
+		String closeArray() {
+			return "]";
+		}
+
+		private static boolean isLiteral(Object value) {
+			if(value instanceof Boolean)
+				return true;
+			if(value instanceof Double || value instanceof Float)
+				return !Double.isNaN(((Number) value).doubleValue()) && !Double.isInfinite(((Number) value).doubleValue());
+			return value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte
+					|| value instanceof java.math.BigDecimal || value instanceof java.math.BigInteger;
+		}
+
+		@Override
+		String openLeaf(String key, boolean item, boolean first, Object value) {
+			return prefix(key, item, first) + (isLiteral(value) ? "" : "\"");
+		}
+
+		@Override
+		String closeLeaf(String key, Object value) {
+			return isLiteral(value) ? "" : "\"";
+		}
+
+		@Override
+		boolean isTruncatable(Object value) {
+			return !isLiteral(value);
+		}
+
+		@Override
+		String nullValue(String key, boolean item, boolean first) {
+			return prefix(key, item, first) + "null";
+		}
+
+		@Override
+		void escape(String text, int from, int to, StringBuilder target) {
+			for(int i = from; i < to; i++) {
+				char ch = text.charAt(i);
+				switch(ch) {
+				case '"': target.append("\\\""); break;
+				case '\\': target.append("\\\\"); break;
+				case '\n': target.append("\\n"); break;
+				case '\r': target.append("\\r"); break;
+				case '\t': target.append("\\t"); break;
+				default:
+					if(ch < 0x20)
+						target.append(String.format("\\u%04x", (int) ch));
+					else
+						target.append(ch);
+				}
+			}
+		}
+	}
+
+}
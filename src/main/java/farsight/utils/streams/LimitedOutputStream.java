@@ -0,0 +1,69 @@
+package farsight.utils.streams;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Output stream that passes at most <code>maxSize</code> bytes to the underlying stream and counts the bytes
+ * written. Writing beyond the limit fills up to the limit and then fails with a {@link LimitExceededException}.
+ * A limit of 0 (or less) means unlimited.
+ */
+public class LimitedOutputStream extends FilterOutputStream {
+
+	private final long maxSize;
+	private long count = 0;
+	private boolean isLimitExceeded = false;
+
+	public LimitedOutputStream(OutputStream out, long maxSize) {
+		super(out);
+		this.maxSize = maxSize;
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	public boolean isLimitExceeded() {
+		return isLimitExceeded;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		if(isLimitExceeded || maxSize > 0 && count >= maxSize) {
+			isLimitExceeded = true;
+			throw new LimitExceededException(maxSize);
+		}
+		out.write(b);
+		count++;
+	}
+
+	@Override
+	public void write(byte[] bytes, int start, int length) throws IOException {
+		if(isLimitExceeded)
+			throw new LimitExceededException(maxSize);
+		if(maxSize > 0 && count + length > maxSize) {
+			//fill to limit
+			int remaining = (int) (maxSize - count);
+			out.write(bytes, start, remaining);
+			count += remaining;
+			isLimitExceeded = true;
+			throw new LimitExceededException(maxSize);
+		}
+		out.write(bytes, start, length);
+		count += length;
+	}
+
+	/**
+	 * Thrown when the limit of a {@link LimitedOutputStream} is exceeded.
+	 */
+	public static class LimitExceededException extends IOException {
+
+		private static final long serialVersionUID = 1L;
+
+		public LimitExceededException(long maxSize) {
+			super("Capacity exceeded: " + maxSize + " bytes");
+		}
+	}
+
+}
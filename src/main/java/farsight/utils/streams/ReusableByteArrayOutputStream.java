@@ -0,0 +1,37 @@
+package farsight.utils.streams;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * ByteArrayOutputStream whose buffer is kept for reuse and can be viewed without copying.
+ */
+public class ReusableByteArrayOutputStream extends ByteArrayOutputStream {
+
+	public ReusableByteArrayOutputStream(int initialSize) {
+		super(initialSize);
+	}
+
+	public synchronized int capacity() {
+		return buf.length;
+	}
+
+	/**
+	 * Returns a read-only view of the written bytes. The view is only valid until the stream is written to or
+	 * recycled again.
+	 */
+	public synchronized ByteBuffer toByteBuffer() {
+		return ByteBuffer.wrap(buf, 0, count).asReadOnlyBuffer();
+	}
+
+	/**
+	 * Resets the stream. The buffer is kept unless it is larger than <code>maxCapacity</code>, then it is
+	 * replaced by a buffer of <code>initialSize</code>.
+	 */
+	public synchronized void recycle(int maxCapacity, int initialSize) {
+		count = 0;
+		if(buf.length > maxCapacity)
+			buf = new byte[initialSize];
+	}
+
+}